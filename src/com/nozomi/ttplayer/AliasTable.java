@@ -0,0 +1,74 @@
+package com.nozomi.ttplayer;
+
+import java.util.Random;
+
+/**
+ * Picks positions at random in proportion to their weights, in constant time
+ * per pick (Vose's alias method). Building the table takes linear time, so
+ * it's built off the main thread; see {@link MusicRetriever}.
+ */
+public class AliasTable {
+
+	// chance of keeping the position of a column, and the alias used otherwise
+	private final float[] probabilities;
+	private final int[] aliases;
+
+	/** Builds the table. The weights must be positive. */
+	public AliasTable(float[] weights) {
+		int size = weights.length;
+		probabilities = new float[size];
+		aliases = new int[size];
+
+		double total = 0;
+		for (float weight : weights) {
+			total += weight;
+		}
+		// scaled so that the average weight is 1
+		double[] scaled = new double[size];
+		int[] small = new int[size];
+		int[] large = new int[size];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < size; i++) {
+			scaled[i] = weights[i] * size / total;
+			if (scaled[i] < 1) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			probabilities[less] = (float) scaled[less];
+			aliases[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1;
+			if (scaled[more] < 1) {
+				small[smallCount++] = more;
+			} else {
+				large[largeCount++] = more;
+			}
+		}
+		// whatever is left is 1 up to rounding errors
+		while (largeCount > 0) {
+			probabilities[large[--largeCount]] = 1;
+		}
+		while (smallCount > 0) {
+			probabilities[small[--smallCount]] = 1;
+		}
+	}
+
+	public int size() {
+		return probabilities.length;
+	}
+
+	/** Returns a random position, or -1 if the table is empty. */
+	public int next(Random random) {
+		if (probabilities.length == 0) {
+			return -1;
+		}
+		int column = random.nextInt(probabilities.length);
+		return random.nextFloat() < probabilities[column] ? column
+				: aliases[column];
+	}
+}
@@ -0,0 +1,116 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed size buffer over part of a file, filled with positional reads, so
+ * header parsers only read the bytes they look at and never more than the
+ * window at once. One window is reused for every file, so it should stay on
+ * one thread.
+ */
+public class ChannelWindow {
+
+	private final ByteBuffer window;
+	private FileChannel channel;
+	private long size;
+	// file position of the first byte in the window
+	private long windowStart = 0;
+
+	public ChannelWindow(int capacity) {
+		window = ByteBuffer.allocate(capacity);
+	}
+
+	/** Starts on another file. */
+	public void reset(FileChannel channel) throws IOException {
+		this.channel = channel;
+		size = channel.size();
+		windowStart = 0;
+		window.limit(0);
+	}
+
+	public FileChannel channel() {
+		return channel;
+	}
+
+	/** Returns the size of the file. */
+	public long size() {
+		return size;
+	}
+
+	public int capacity() {
+		return window.capacity();
+	}
+
+	/**
+	 * Makes sure the window holds the length bytes at the given position of
+	 * the file, reading them if needed. Returns false if the file ends before,
+	 * or if they don't fit in the window.
+	 */
+	public boolean fill(long position, int length) throws IOException {
+		if (position < 0 || length > window.capacity()) {
+			return false;
+		}
+		if (position >= windowStart
+				&& position + length <= windowStart + window.limit()) {
+			return true;
+		}
+		window.clear();
+		windowStart = position;
+		while (window.hasRemaining()) {
+			if (channel.read(window, position + window.position()) == -1) {
+				break;
+			}
+		}
+		window.flip();
+		return window.limit() >= length;
+	}
+
+	/** Returns the offset in {@link #array()} of a filled position. */
+	public int at(long position) {
+		return (int) (position - windowStart);
+	}
+
+	public byte[] array() {
+		return window.array();
+	}
+
+	public int get(long position) {
+		return window.get(at(position)) & 0xff;
+	}
+
+	public int getInt(long position) {
+		return window.order(ByteOrder.BIG_ENDIAN).getInt(at(position));
+	}
+
+	public long getLong(long position) {
+		return window.order(ByteOrder.BIG_ENDIAN).getLong(at(position));
+	}
+
+	public int getIntLE(long position) {
+		return window.order(ByteOrder.LITTLE_ENDIAN).getInt(at(position));
+	}
+
+	public long getLongLE(long position) {
+		return window.order(ByteOrder.LITTLE_ENDIAN).getLong(at(position));
+	}
+
+	public int getShortLE(long position) {
+		return window.order(ByteOrder.LITTLE_ENDIAN).getShort(at(position))
+				& 0xffff;
+	}
+
+	/** Returns whether the filled bytes at the position are the given ASCII. */
+	public boolean matches(long position, String ascii) {
+		int offset = at(position);
+		byte[] bytes = window.array();
+		for (int i = 0; i < ascii.length(); i++) {
+			if (bytes[offset + i] != ascii.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
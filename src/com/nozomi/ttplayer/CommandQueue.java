@@ -0,0 +1,162 @@
+package com.nozomi.ttplayer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Intent;
+
+/**
+ * The commands sent to {@link MusicService} that it hasn't carried out yet.
+ * Actions are turned into int ids once, on the way in, so the service can
+ * switch on them. Commands that a later one makes pointless are folded into
+ * it, so a burst of input only costs the work for where it ends up:
+ * <ul>
+ * <li>only the last volume change and progress request are kept, wherever
+ * they are in the queue, since none depends on what comes before;</li>
+ * <li>a mode change replaces the one before it only if no play, skip,
+ * previous or selection is queued in between, since those pick the next song
+ * by the mode. So "random, skip, order" still skips in random order;</li>
+ * <li>a seek replaces a seek right before it, and the same for init and song
+ * list requests;</li>
+ * <li>skips in a row become one skip by that many songs, and the same for
+ * previous.</li>
+ * </ul>
+ * Folding only sees the commands queued together, so the service holds back
+ * seeks, volume changes and skips for a moment, see {@link #canWait()}.
+ * Only used from the main thread.
+ */
+public class CommandQueue {
+
+	public static final int PLAY = 1;
+	public static final int REWIND = 2;
+	public static final int PAUSE = 3;
+	public static final int STOP = 4;
+	public static final int SKIP = 5;
+	public static final int PREVIOUS = 6;
+	public static final int SET_FOLDER = 7;
+	public static final int DELETE = 8;
+	public static final int INIT = 9;
+	public static final int PLAY_SELECT = 10;
+	public static final int SET_VOLUME = 11;
+	public static final int GET_PROGRESS = 12;
+	public static final int SET_PROGRESS = 13;
+	public static final int GET_SONG_LIST = 14;
+	public static final int SET_MODE = 15;
+
+	private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	static {
+		ids.put(MusicService.ACTION_PLAY, PLAY);
+		ids.put(MusicService.ACTION_REWIND, REWIND);
+		ids.put(MusicService.ACTION_PAUSE, PAUSE);
+		ids.put(MusicService.ACTION_STOP, STOP);
+		ids.put(MusicService.ACTION_SKIP, SKIP);
+		ids.put(MusicService.ACTION_PREVIOUS, PREVIOUS);
+		ids.put(MusicService.ACTION_SET_FOLDER, SET_FOLDER);
+		ids.put(MusicService.ACTION_DELETE, DELETE);
+		ids.put(MusicService.ACTION_INIT, INIT);
+		ids.put(MusicService.ACTION_PLAY_SELECT, PLAY_SELECT);
+		ids.put(MusicService.ACTION_SET_VOLUME, SET_VOLUME);
+		ids.put(MusicService.ACTION_GET_PROGRESS, GET_PROGRESS);
+		ids.put(MusicService.ACTION_SET_PROGRESS, SET_PROGRESS);
+		ids.put(MusicService.ACTION_GET_SONG_LIST, GET_SONG_LIST);
+		ids.put(MusicService.ACTION_SET_MODE, SET_MODE);
+	}
+
+	public static class Command {
+		public final int id;
+		public Intent intent;
+		/** How many times it was sent, for skip and previous. */
+		public int count = 1;
+
+		Command(int id, Intent intent) {
+			this.id = id;
+			this.intent = intent;
+		}
+	}
+
+	private final ArrayList<Command> commands = new ArrayList<Command>();
+
+	/**
+	 * Queues the command of the intent, folding it into those queued already
+	 * where it can. Returns false if the action is unknown.
+	 */
+	public boolean add(Intent intent) {
+		String action = intent.getAction();
+		Integer id = action == null ? null : ids.get(action);
+		if (id == null) {
+			return false;
+		}
+		Command last = commands.isEmpty() ? null : commands
+				.get(commands.size() - 1);
+		switch (id) {
+		case SET_VOLUME:
+		case GET_PROGRESS:
+			for (int i = 0; i < commands.size(); i++) {
+				if (commands.get(i).id == id) {
+					commands.remove(i);
+					break;
+				}
+			}
+			break;
+		case SET_MODE:
+			for (int i = commands.size() - 1; i >= 0; i--) {
+				int queued = commands.get(i).id;
+				if (queued == SET_MODE) {
+					commands.remove(i);
+					break;
+				}
+				if (queued == PLAY || queued == SKIP || queued == PREVIOUS
+						|| queued == PLAY_SELECT) {
+					break;
+				}
+			}
+			break;
+		case SET_PROGRESS:
+		case INIT:
+		case GET_SONG_LIST:
+			if (last != null && last.id == id) {
+				last.intent = intent;
+				return true;
+			}
+			break;
+		case SKIP:
+		case PREVIOUS:
+			if (last != null && last.id == id) {
+				last.count++;
+				return true;
+			}
+			break;
+		}
+		commands.add(new Command(id, intent));
+		return true;
+	}
+
+	/**
+	 * Whether all the queued commands come in bursts from the seek bar, the
+	 * volume keys and the skip buttons, so that carrying them out can wait a
+	 * moment for more of them to fold into.
+	 */
+	public boolean canWait() {
+		for (Command command : commands) {
+			switch (command.id) {
+			case SET_PROGRESS:
+			case SET_VOLUME:
+			case SKIP:
+			case PREVIOUS:
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns the oldest command and removes it, or null if there is none. */
+	public Command poll() {
+		return commands.isEmpty() ? null : commands.remove(0);
+	}
+
+	public void clear() {
+		commands.clear();
+	}
+}
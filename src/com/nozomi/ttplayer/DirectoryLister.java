@@ -0,0 +1,169 @@
+package com.nozomi.ttplayer;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+
+/**
+ * Lists folders for the folder browser off the main thread. Listings are
+ * kept in an LRU cache shared by all listers and keyed by path; a cached
+ * listing holds while the folder keeps its mtime. A cached listing is shown
+ * right away and checked against the folder afterwards, so going back up or
+ * into a prefetched folder doesn't wait for the SD card.
+ *
+ * Listing and prefetching have a thread each, so prefetches never hold up
+ * the folder the user is waiting for. Create a lister on the main thread;
+ * listeners are called there.
+ */
+public class DirectoryLister {
+
+	public interface OnListedListener {
+		/** listing is null if the folder can't be listed. */
+		public void onListed(String path, Listing listing);
+	}
+
+	/** The entries of a folder, sorted by name. */
+	public static class Listing {
+		public final String path;
+		public final long mtime;
+		public final String[] names;
+		public final boolean[] directories;
+
+		Listing(String path, long mtime, String[] names, boolean[] directories) {
+			this.path = path;
+			this.mtime = mtime;
+			this.names = names;
+			this.directories = directories;
+		}
+	}
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final LinkedHashMap<String, Listing> cache = new LinkedHashMap<String, Listing>(
+			CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, Listing> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final Handler handler = new Handler();
+	private final ExecutorService listExecutor = Executors
+			.newSingleThreadExecutor();
+	private final ExecutorService prefetchExecutor = Executors
+			.newSingleThreadExecutor();
+	// bumped by every prefetch request, so that older ones are dropped
+	private final AtomicInteger prefetchGeneration = new AtomicInteger();
+	// collators are not thread safe, so one for each thread
+	private final Collator listCollator = Collator.getInstance(Locale.CHINA);
+	private final Collator prefetchCollator = Collator
+			.getInstance(Locale.CHINA);
+
+	/** Returns the cached listing of the folder, which may be out of date. */
+	public static Listing getCached(String path) {
+		synchronized (cache) {
+			return cache.get(path);
+		}
+	}
+
+	/**
+	 * Lists the folder in background and hands the listing to the listener.
+	 * If the cached listing is still up to date, that one is handed on.
+	 */
+	public void list(final String path, final OnListedListener listener) {
+		try {
+			listExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					final Listing listing = load(path, listCollator);
+					handler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							listener.onListed(path, listing);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	/**
+	 * Lists the given folders in background, into the cache only. Replaces
+	 * the folders of earlier calls that haven't been listed yet.
+	 */
+	public void prefetch(final String[] paths) {
+		final int generation = prefetchGeneration.incrementAndGet();
+		try {
+			prefetchExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (String path : paths) {
+						if (prefetchGeneration.get() != generation) {
+							return;
+						}
+						load(path, prefetchCollator);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	/** Stops the threads. Listeners are not called after this. */
+	public void shutdown() {
+		listExecutor.shutdownNow();
+		prefetchExecutor.shutdownNow();
+		handler.removeCallbacksAndMessages(null);
+	}
+
+	/** Returns the up to date listing of the folder, listing it if needed. */
+	private static Listing load(String path, Collator collator) {
+		File folder = new File(path);
+		long mtime = folder.lastModified();
+		Listing cached = getCached(path);
+		if (cached != null && cached.mtime == mtime && mtime != 0) {
+			return cached;
+		}
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return null;
+		}
+		// sorting by collation keys compares each name's bytes instead of
+		// running the collator for every comparison
+		CollationKey[] keys = new CollationKey[files.length];
+		for (int i = 0; i < files.length; i++) {
+			keys[i] = collator.getCollationKey(files[i].getName());
+		}
+		Arrays.sort(keys);
+		String[] names = new String[files.length];
+		boolean[] directories = new boolean[files.length];
+		for (int i = 0; i < keys.length; i++) {
+			names[i] = keys[i].getSourceString();
+			directories[i] = new File(folder, names[i]).isDirectory();
+		}
+		Listing listing = new Listing(path, mtime, names, directories);
+		synchronized (cache) {
+			cache.put(path, listing);
+		}
+		return listing;
+	}
+}
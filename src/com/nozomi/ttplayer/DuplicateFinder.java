@@ -0,0 +1,436 @@
+package com.nozomi.ttplayer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Finds files that hold the same audio, like a track copied into several
+ * folders. ID3v2, APEv2 and ID3v1 tags are left out, so copies tagged
+ * differently still match; tags inside the container, as in FLAC and MP4,
+ * are not.
+ *
+ * Files are first bucketed by the length of their audio, which only costs
+ * reading their tag headers. Files that share a length get a fingerprint of
+ * the length and a few blocks sampled at fixed offsets, and files that share
+ * a fingerprint are compared byte by byte, so no file is read whole unless
+ * it very likely is a duplicate. Every pass runs on a small pool of threads,
+ * like {@link TagExtractor}.
+ *
+ * The audio region found for a song is kept on it, to be cached with its
+ * tags, so that {@link #findCopies(List, List)} only opens the songs already
+ * in the list whose audio is as long as that of a new one.
+ */
+public class DuplicateFinder {
+	final String TAG = "DuplicateFinder";
+
+	private static final int MAX_THREADS = 4;
+	private static final int SAMPLES = 4;
+	private static final int SAMPLE_SIZE = 4 * 1024;
+	private static final int COMPARE_SIZE = 64 * 1024;
+	private static final int ID3V1_SIZE = 128;
+	private static final int APE_FOOTER_SIZE = 32;
+
+	// where the audio of every song starts and ends, -1 if unreadable
+	private long[] starts;
+	private long[] ends;
+	// the songs whose audio region had to be read from their files
+	private final ArrayList<Song> measured = new ArrayList<Song>();
+
+	/**
+	 * Returns the added songs whose audio is in one of the existing songs
+	 * already, or in an added song before them. Only the added songs, the
+	 * existing ones as long as one of them and the existing ones whose audio
+	 * region isn't known yet are read. Don't call it from the main thread.
+	 */
+	public ArrayList<Song> findCopies(List<Song> existing, List<Song> added) {
+		ArrayList<Song> unknown = new ArrayList<Song>();
+		for (Song song : existing) {
+			if (song.getAudioEnd() <= 0) {
+				unknown.add(song);
+			}
+		}
+		unknown.addAll(added);
+		measure(unknown);
+		HashSet<Long> lengths = new HashSet<Long>();
+		for (Song song : added) {
+			if (song.getAudioEnd() > 0) {
+				lengths.add(song.getAudioEnd() - song.getAudioStart());
+			}
+		}
+		// existing songs first, so that they are the ones kept
+		ArrayList<Song> candidates = new ArrayList<Song>();
+		for (Song song : existing) {
+			if (song.getAudioEnd() > 0
+					&& lengths.contains(song.getAudioEnd()
+							- song.getAudioStart())) {
+				candidates.add(song);
+			}
+		}
+		for (Song song : added) {
+			if (song.getAudioEnd() > 0) {
+				candidates.add(song);
+			}
+		}
+		HashSet<Song> addedSet = new HashSet<Song>(added);
+		ArrayList<Song> copies = new ArrayList<Song>();
+		for (ArrayList<Song> group : find(candidates)) {
+			for (Song song : group.subList(1, group.size())) {
+				if (addedSet.contains(song)) {
+					copies.add(song);
+				}
+			}
+		}
+		return copies;
+	}
+
+	/**
+	 * Returns the songs whose audio region was read from their files, rather
+	 * than known, since this finder was made.
+	 */
+	public List<Song> getMeasured() {
+		return measured;
+	}
+
+	/** Reads the audio regions of the songs that don't know theirs. */
+	private void measure(final List<Song> songs) {
+		final ArrayList<Song> unknown = new ArrayList<Song>();
+		for (Song song : songs) {
+			if (song.getAudioEnd() <= 0) {
+				unknown.add(song);
+			}
+		}
+		starts = new long[unknown.size()];
+		ends = new long[unknown.size()];
+		parallel(unknown.size(), new Pass() {
+
+			@Override
+			void run(int index, Buffers buffers) throws IOException {
+				audioRegion(unknown.get(index), index, buffers.sample);
+			}
+		});
+		for (int i = 0; i < unknown.size(); i++) {
+			if (starts[i] != -1) {
+				unknown.get(i).setAudioRegion(starts[i], ends[i]);
+				measured.add(unknown.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Returns the groups of songs with the same audio, each in list order and
+	 * the groups in the order of their first song. Don't call it from the main
+	 * thread.
+	 */
+	public ArrayList<ArrayList<Song>> find(final List<Song> songs) {
+		long start = System.currentTimeMillis();
+		int size = songs.size();
+		measure(songs);
+		starts = new long[size];
+		ends = new long[size];
+		for (int i = 0; i < size; i++) {
+			Song song = songs.get(i);
+			starts[i] = song.getAudioEnd() > 0 ? song.getAudioStart() : -1;
+			ends[i] = song.getAudioEnd();
+		}
+
+		// only songs whose audio has the same length can be the same
+		HashMap<Long, ArrayList<Integer>> lengths = new HashMap<Long, ArrayList<Integer>>();
+		final ArrayList<Integer> candidates = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			if (starts[i] == -1) {
+				continue;
+			}
+			Long length = ends[i] - starts[i];
+			ArrayList<Integer> bucket = lengths.get(length);
+			if (bucket == null) {
+				bucket = new ArrayList<Integer>(2);
+				lengths.put(length, bucket);
+			}
+			bucket.add(i);
+			if (bucket.size() == 2) {
+				candidates.add(bucket.get(0));
+			}
+			if (bucket.size() >= 2) {
+				candidates.add(i);
+			}
+		}
+
+		final long[] fingerprints = new long[size];
+		parallel(candidates.size(), new Pass() {
+
+			@Override
+			void run(int index, Buffers buffers) throws IOException {
+				int song = candidates.get(index);
+				fingerprints[song] = fingerprint(songs.get(song), song,
+						buffers.sample);
+			}
+		});
+
+		// songs sharing the length and fingerprint, in list order
+		HashMap<Long, ArrayList<Integer>> buckets = new HashMap<Long, ArrayList<Integer>>();
+		final ArrayList<ArrayList<Integer>> collisions = new ArrayList<ArrayList<Integer>>();
+		int[] sorted = new int[candidates.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = candidates.get(i);
+		}
+		Arrays.sort(sorted);
+		for (int song : sorted) {
+			// the fingerprint covers the length too
+			ArrayList<Integer> bucket = buckets.get(fingerprints[song]);
+			if (bucket == null) {
+				bucket = new ArrayList<Integer>(2);
+				buckets.put(fingerprints[song], bucket);
+			}
+			bucket.add(song);
+			if (bucket.size() == 2) {
+				collisions.add(bucket);
+			}
+		}
+
+		// confirm every collision byte by byte
+		final ArrayList<ArrayList<Integer>> groups = new ArrayList<ArrayList<Integer>>();
+		parallel(collisions.size(), new Pass() {
+
+			@Override
+			void run(int index, Buffers buffers) throws IOException {
+				ArrayList<Integer> rest = new ArrayList<Integer>(collisions
+						.get(index));
+				while (rest.size() >= 2) {
+					int first = rest.remove(0);
+					ArrayList<Integer> group = new ArrayList<Integer>();
+					group.add(first);
+					for (int i = 0; i < rest.size();) {
+						if (sameAudio(songs, first, rest.get(i), buffers)) {
+							group.add(rest.remove(i));
+						} else {
+							i++;
+						}
+					}
+					if (group.size() >= 2) {
+						synchronized (groups) {
+							groups.add(group);
+						}
+					}
+				}
+			}
+		});
+
+		ArrayList<ArrayList<Song>> result = new ArrayList<ArrayList<Song>>(
+				groups.size());
+		int[] order = new int[groups.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = groups.get(i).get(0);
+		}
+		Arrays.sort(order);
+		HashMap<Integer, ArrayList<Integer>> byFirst = new HashMap<Integer, ArrayList<Integer>>();
+		for (ArrayList<Integer> group : groups) {
+			byFirst.put(group.get(0), group);
+		}
+		for (int first : order) {
+			ArrayList<Song> group = new ArrayList<Song>();
+			for (int song : byFirst.get(first)) {
+				group.add(songs.get(song));
+			}
+			result.add(group);
+		}
+		starts = null;
+		ends = null;
+		Log.e(TAG, "checked " + size + " songs, " + candidates.size()
+				+ " sampled, " + collisions.size() + " compared, "
+				+ result.size() + " groups in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return result;
+	}
+
+	/** Finds where the audio of the song is, between its tags. */
+	private void audioRegion(Song song, int index, ByteBuffer buffer)
+			throws IOException {
+		starts[index] = -1;
+		FileInputStream fis = new FileInputStream(song.getPath());
+		try {
+			FileChannel channel = fis.getChannel();
+			long start = 0;
+			long end = channel.size();
+			if (read(channel, 0, 10, buffer) && buffer.get(0) == 'I'
+					&& buffer.get(1) == 'D' && buffer.get(2) == '3') {
+				start = 10 + ((buffer.get(6) & 0x7f) << 21
+						| (buffer.get(7) & 0x7f) << 14
+						| (buffer.get(8) & 0x7f) << 7
+						| (buffer.get(9) & 0x7f));
+				if (buffer.get(3) == 4 && (buffer.get(5) & 0x10) != 0) {
+					start += 10;
+				}
+			}
+			if (end - start >= ID3V1_SIZE
+					&& read(channel, end - ID3V1_SIZE, 3, buffer)
+					&& buffer.get(0) == 'T' && buffer.get(1) == 'A'
+					&& buffer.get(2) == 'G') {
+				end -= ID3V1_SIZE;
+			}
+			// APEv2 tags sit at the end, before any ID3v1 tag
+			if (end - start >= APE_FOOTER_SIZE
+					&& read(channel, end - APE_FOOTER_SIZE, APE_FOOTER_SIZE,
+							buffer) && isApeFooter(buffer)) {
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				// the tag size covers the items and the footer
+				long tagSize = buffer.getInt(12) & 0xffffffffL;
+				boolean hasHeader = (buffer.getInt(20) & 0x80000000) != 0;
+				buffer.order(ByteOrder.BIG_ENDIAN);
+				end -= tagSize + (hasHeader ? APE_FOOTER_SIZE : 0);
+			}
+			if (end > start) {
+				starts[index] = start;
+				ends[index] = end;
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	private static boolean isApeFooter(ByteBuffer buffer) {
+		String magic = "APETAGEX";
+		for (int i = 0; i < magic.length(); i++) {
+			if (buffer.get(i) != magic.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Hashes the audio length and SAMPLES blocks spread over the audio. */
+	private long fingerprint(Song song, int index, ByteBuffer buffer)
+			throws IOException {
+		long length = ends[index] - starts[index];
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash ^ ((length >>> (i * 8)) & 0xff)) * 0x100000001b3L;
+		}
+		FileInputStream fis = new FileInputStream(song.getPath());
+		try {
+			FileChannel channel = fis.getChannel();
+			int sampleSize = (int) Math.min(SAMPLE_SIZE, length);
+			for (int i = 0; i < SAMPLES; i++) {
+				long offset = starts[index] + (length - sampleSize) * i
+						/ (SAMPLES - 1);
+				if (!read(channel, offset, sampleSize, buffer)) {
+					break;
+				}
+				byte[] bytes = buffer.array();
+				for (int j = 0; j < sampleSize; j++) {
+					hash = (hash ^ (bytes[j] & 0xff)) * 0x100000001b3L;
+				}
+			}
+		} finally {
+			fis.close();
+		}
+		return hash;
+	}
+
+	/** Compares the audio of two songs byte by byte. */
+	private boolean sameAudio(List<Song> songs, int a, int b, Buffers buffers)
+			throws IOException {
+		long length = ends[a] - starts[a];
+		if (ends[b] - starts[b] != length) {
+			return false;
+		}
+		FileInputStream fisA = new FileInputStream(songs.get(a).getPath());
+		FileInputStream fisB = null;
+		try {
+			fisB = new FileInputStream(songs.get(b).getPath());
+			FileChannel channelA = fisA.getChannel();
+			FileChannel channelB = fisB.getChannel();
+			for (long done = 0; done < length; done += COMPARE_SIZE) {
+				int chunk = (int) Math.min(COMPARE_SIZE, length - done);
+				if (!read(channelA, starts[a] + done, chunk, buffers.compareA)
+						|| !read(channelB, starts[b] + done, chunk,
+								buffers.compareB)
+						|| !buffers.compareA.equals(buffers.compareB)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			fisA.close();
+			if (fisB != null) {
+				fisB.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads length bytes at the position into the start of the buffer,
+	 * leaving it flipped. Returns false if the file ends before.
+	 */
+	private static boolean read(FileChannel channel, long position,
+			int length, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private static class Buffers {
+		final ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+		final ByteBuffer compareA = ByteBuffer.allocate(COMPARE_SIZE);
+		final ByteBuffer compareB = ByteBuffer.allocate(COMPARE_SIZE);
+	}
+
+	private abstract class Pass {
+		abstract void run(int index, Buffers buffers) throws IOException;
+	}
+
+	/** Runs the pass for 0..count-1 on the pool and returns when done. */
+	private void parallel(final int count, final Pass pass) {
+		if (count == 0) {
+			return;
+		}
+		int threadCount = Math.min(count, Math.min(MAX_THREADS, Math.max(1,
+				Runtime.getRuntime().availableProcessors())));
+		ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+		final AtomicInteger next = new AtomicInteger();
+		for (int i = 0; i < threadCount; i++) {
+			pool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					Buffers buffers = new Buffers();
+					int index;
+					while ((index = next.getAndIncrement()) < count) {
+						try {
+							pass.run(index, buffers);
+						} catch (IOException e) {
+							Log.e(TAG, e.getMessage());
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
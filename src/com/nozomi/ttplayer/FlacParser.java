@@ -0,0 +1,56 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+
+/**
+ * Reads the duration from the STREAMINFO block of a FLAC file and the tags
+ * from its Vorbis comment block. Other blocks, like pictures, are skipped
+ * without being read.
+ */
+public class FlacParser {
+
+	private static final int STREAMINFO = 0;
+	private static final int VORBIS_COMMENT = 4;
+
+	private final ChannelWindow window;
+
+	public FlacParser(ChannelWindow window) {
+		this.window = window;
+	}
+
+	/** Parses the file the window was reset to. */
+	public void parse(Song song) throws IOException {
+		long position = FormatSniffer.id3v2End(window);
+		if (!window.fill(position, 4) || !window.matches(position, "fLaC")) {
+			return;
+		}
+		position += 4;
+		boolean last = false;
+		while (!last && window.fill(position, 4)) {
+			int header = window.getInt(position);
+			last = header < 0;
+			int type = (header >>> 24) & 0x7f;
+			int length = header & 0xffffff;
+			position += 4;
+			if (type == STREAMINFO && window.fill(position, 18)) {
+				// 20 bits sample rate, 3 channels, 5 bits per sample, 36
+				// total samples
+				long bits = window.getLong(position + 10);
+				int sampleRate = (int) (bits >>> 44);
+				long samples = bits & 0xfffffffffL;
+				if (sampleRate > 0 && samples > 0) {
+					song.setDuration((int) (samples * 1000 / sampleRate));
+				}
+			} else if (type == VORBIS_COMMENT) {
+				int available = (int) Math.min(Math.min(length,
+						window.capacity()), window.size() - position);
+				if (available > 0 && window.fill(position, available)) {
+					int offset = window.at(position);
+					VorbisComments.parse(window.array(), offset, offset
+							+ available, song);
+				}
+			}
+			position += length;
+		}
+	}
+}
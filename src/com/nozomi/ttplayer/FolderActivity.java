@@ -6,31 +6,46 @@ import android.view.View;
 import android.view.View.OnClickListener;
 
 import java.io.File;
-import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Locale;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.Handler;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.TextView;
 
 public class FolderActivity extends Activity implements OnClickListener,
-		OnItemClickListener {
+		OnItemClickListener, OnScrollListener,
+		DirectoryLister.OnListedListener {
 
 	private String current = "";
+	private DirectoryLister lister = null;
+	// the listing shown, null while the current folder is being listed
+	private DirectoryLister.Listing shown = null;
+	// the folder we came up from, to scroll to once the parent is shown
+	private String cameFrom = null;
+	// the folders prefetched last
+	private ArrayList<String> prefetched = new ArrayList<String>();
+	private FolderIndex folderIndex = null;
+	private final Handler handler = new Handler();
 	private ArrayList<String> fileArray = null;
 	private ArrayAdapter<String> adapter = null;
 	private TextView currentView = null;
 	private ListView listView = null;
 	private Button backView = null;
 	private Button okView = null;
+	private CheckBox recursiveView = null;
+	private CheckBox skipDuplicatesView = null;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -39,10 +54,10 @@ public class FolderActivity extends Activity implements OnClickListener,
 
 		current = Environment.getExternalStorageDirectory().getPath();
 		currentView = (TextView) findViewById(R.id.current);
-		currentView.setText("current:" + current);
 
 		listView = (ListView) findViewById(R.id.list);
 		listView.setOnItemClickListener(this);
+		listView.setOnScrollListener(this);
 		fileArray = new ArrayList<String>();
 		adapter = new ArrayAdapter<String>(this,
 				android.R.layout.simple_list_item_1, fileArray);
@@ -54,38 +69,106 @@ public class FolderActivity extends Activity implements OnClickListener,
 		okView = (Button) findViewById(R.id.ok);
 		okView.setOnClickListener(this);
 
-		getFileArray(new File(current));
+		recursiveView = (CheckBox) findViewById(R.id.recursive);
+		skipDuplicatesView = (CheckBox) findViewById(R.id.skip_duplicates);
+
+		// count the music on the whole card, to show next to the folders
+		folderIndex = FolderIndex.get();
+		lister = new DirectoryLister();
+		open(current);
+
+		folderIndex.refresh(current, new Runnable() {
+
+			@Override
+			public void run() {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						show(shown);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		lister.shutdown();
+		handler.removeCallbacksAndMessages(null);
 	}
 
 	@Override
 	public void onClick(View v) {
 		if (v == backView) {
+			cameFrom = current.substring(current.lastIndexOf("/") + 1);
 			current = current.substring(0, current.lastIndexOf("/"));
 			if (current.equals("")) {
 				current = "/";
 			}
-			currentView.setText("current:" + current);
-			File file = new File(current);
-			getFileArray(file);
+			open(current);
 			if (current.equals("/")) {
 				backView.setVisibility(View.INVISIBLE);
 			}
 		} else if (v == okView) {
-			Intent intent = new Intent();
-			intent.putExtra("folder_path", current);
-			setResult(RESULT_OK, intent);
-			finish();
+			boolean recursive = recursiveView.isChecked();
+			FolderIndex.Counts counts = folderIndex.getCounts(current);
+			if (counts == null
+					|| (recursive ? counts.allSongs : counts.songs) != 0) {
+				choose();
+				return;
+			}
+			// counts loaded from disk may be older than music just copied in;
+			// those of the folder itself hold while its mtime is the same
+			boolean fresh = !folderIndex.isRefreshing()
+					|| (!recursive && counts.holds(new File(current)
+							.lastModified()));
+			if (fresh) {
+				new AlertDialog.Builder(this).setTitle("Message")
+						.setMessage("There is no music in this folder")
+						.setPositiveButton("ok", null).show();
+			} else {
+				new AlertDialog.Builder(this)
+						.setTitle("Message")
+						.setMessage(
+								"No music found in this folder yet, the counts are still being updated")
+						.setPositiveButton("use it anyway",
+								new DialogInterface.OnClickListener() {
+
+									@Override
+									public void onClick(DialogInterface dialog,
+											int which) {
+										choose();
+									}
+								}).setNegativeButton("cancel", null).show();
+			}
 		}
 	}
 
+	/** Hands the current folder back to the caller and closes. */
+	private void choose() {
+		Intent intent = new Intent();
+		intent.putExtra("folder_path", current);
+		intent.putExtra("max_depth",
+				recursiveView.isChecked() ? LibraryScanner.DEFAULT_MAX_DEPTH
+						: 0);
+		intent.putExtra("skip_duplicates", skipDuplicatesView.isChecked());
+		setResult(RESULT_OK, intent);
+		finish();
+	}
+
 	@Override
 	public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
-		File file = new File(current + "/" + fileArray.get(position));
+		if (shown == null) {
+			return;
+		}
+		File file = new File(current + "/" + shown.names[position]);
 		if (file.canRead()) {
-			if (file.isDirectory()) {
+			if (shown.directories[position]) {
 				current = file.getPath();
-				currentView.setText("current:" + current);
-				getFileArray(file);
+				cameFrom = null;
+				open(current);
 				backView.setVisibility(View.VISIBLE);
 			} else {
 				new AlertDialog.Builder(this)
@@ -101,15 +184,104 @@ public class FolderActivity extends Activity implements OnClickListener,
 		}
 	}
 
-	private void getFileArray(File folder) {
+	/**
+	 * Shows the folder: at once if its listing is cached, and again once it
+	 * has been listed if it changed meanwhile.
+	 */
+	private void open(String path) {
+		show(DirectoryLister.getCached(path));
+		lister.list(path, this);
+	}
+
+	@Override
+	public void onListed(String path, DirectoryLister.Listing listing) {
+		if (!path.equals(current)) {
+			return;
+		}
+		if (listing == null) {
+			if (shown == null) {
+				new AlertDialog.Builder(this).setTitle("Message")
+						.setMessage("Access denied")
+						.setPositiveButton("ok", null).show();
+			}
+			return;
+		}
+		if (listing != shown) {
+			show(listing);
+		}
+	}
+
+	private void show(DirectoryLister.Listing listing) {
+		boolean moved = listing != shown;
+		shown = listing;
+		currentView.setText("current:" + current
+				+ countsOf(folderIndex.getCounts(current)));
 		fileArray.clear();
-		File[] files = folder.listFiles();
-		for (File file : files) {
-			fileArray.add(file.getName());
+		if (listing != null) {
+			for (int i = 0; i < listing.names.length; i++) {
+				String name = listing.names[i];
+				if (listing.directories[i]) {
+					name += countsOf(folderIndex.getCounts(new File(
+							listing.path, name).getPath()));
+				}
+				fileArray.add(name);
+			}
 		}
-		Collections.sort(fileArray,
-				Collator.getInstance(Locale.CHINA));
 		adapter.notifyDataSetChanged();
+		if (moved && listing != null) {
+			int selection = -1;
+			if (cameFrom != null) {
+				for (int i = 0; i < listing.names.length; i++) {
+					if (listing.names[i].equals(cameFrom)) {
+						selection = i;
+						break;
+					}
+				}
+			}
+			listView.setSelection(Math.max(0, selection));
+		}
+	}
+
+	/** Returns what to show after a folder name about its music. */
+	private static String countsOf(FolderIndex.Counts counts) {
+		if (counts == null) {
+			return "";
+		}
+		if (counts.allSongs == 0) {
+			return "  (no music)";
+		}
+		return String.format(Locale.US, "  (%d songs, %.1fMB)",
+				counts.allSongs, counts.allBytes / (1024.0 * 1024.0));
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem,
+			int visibleItemCount, int totalItemCount) {
+		if (shown == null || visibleItemCount == 0) {
+			return;
+		}
+		// the folders the user may go to next: the visible ones and up
+		ArrayList<String> paths = new ArrayList<String>();
+		int end = Math.min(firstVisibleItem + visibleItemCount,
+				shown.names.length);
+		for (int i = firstVisibleItem; i < end; i++) {
+			if (shown.directories[i]) {
+				paths.add(new File(shown.path, shown.names[i]).getPath());
+			}
+		}
+		String parent = new File(shown.path).getParent();
+		if (parent != null) {
+			paths.add(parent);
+		}
+		// called for every frame of a scroll, mostly with the same folders
+		if (!paths.equals(prefetched)) {
+			prefetched = paths;
+			lister.prefetch(paths.toArray(new String[paths.size()]));
+		}
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
 	}
 
 }
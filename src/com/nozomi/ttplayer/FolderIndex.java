@@ -0,0 +1,340 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * How many audio files, and how many bytes of them, every folder on the SD
+ * card holds, itself and with everything below it, so the folder picker can
+ * show where the music is. Kept in /ttplayer/folders_index.dat and brought
+ * up to date in background: a folder is only listed again when its mtime
+ * moved, the others are only stat'ed. Sizes of files rewritten in place,
+ * which doesn't touch the folder's mtime, stay as they were.
+ *
+ * Like {@link LibraryScanner}, folders with a .nomedia file don't count for
+ * the folders above them.
+ */
+public class FolderIndex {
+	final String TAG = "FolderIndex";
+
+	private static final int MAGIC = 0x74744649; // "ttFI"
+	private static final int VERSION = 1;
+	// deeper than any real music folder, and safe from symlink loops
+	private static final int MAX_DEPTH = 32;
+	// how deep folders are whose refresh is reported
+	private static final int PROGRESS_DEPTH = 1;
+
+	/** The counts of one folder. */
+	public static class Counts {
+		/** Audio files directly in the folder, and their bytes. */
+		public final int songs;
+		public final long bytes;
+		/** Audio files in the folder and all folders below it. */
+		public final int allSongs;
+		public final long allBytes;
+		final boolean noMedia;
+		final long mtime;
+		// when the folder was listed, to tell whether its mtime can be trusted
+		final long listTime;
+		final String[] children;
+
+		Counts(int songs, long bytes, int allSongs, long allBytes,
+				boolean noMedia, long mtime, long listTime, String[] children) {
+			this.songs = songs;
+			this.bytes = bytes;
+			this.allSongs = allSongs;
+			this.allBytes = allBytes;
+			this.noMedia = noMedia;
+			this.mtime = mtime;
+			this.listTime = listTime;
+			this.children = children;
+		}
+
+		/**
+		 * Whether the listing still holds for the folder with this mtime. One
+		 * that was listed right after it was modified may have changed again
+		 * within the mtime granularity.
+		 */
+		boolean holds(long mtime) {
+			return this.mtime == mtime && mtime != 0
+					&& mtime + FolderSnapshot.MTIME_GRANULARITY < listTime;
+		}
+	}
+
+	private static FolderIndex instance = null;
+
+	private final File file = new File(
+			Environment.getExternalStorageDirectory() + "/ttplayer",
+			"folders_index.dat");
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor();
+	// guarded by this
+	private HashMap<String, Counts> folders = null;
+	private boolean refreshing = false;
+
+	// only touched by the refresh thread
+	private boolean changed;
+	private HashSet<String> visited;
+
+	public static synchronized FolderIndex get() {
+		if (instance == null) {
+			instance = new FolderIndex();
+		}
+		return instance;
+	}
+
+	/** Returns the counts of the folder, or null if not known yet. */
+	public synchronized Counts getCounts(String path) {
+		return folders == null ? null : folders.get(path);
+	}
+
+	/**
+	 * Whether a refresh is running, so that counts may still be the ones
+	 * loaded from the saved index.
+	 */
+	public synchronized boolean isRefreshing() {
+		return refreshing;
+	}
+
+	/**
+	 * Brings the counts of the folder and everything below it up to date in
+	 * background, loading the saved ones first. The listener, which may be
+	 * null, is called on the background thread whenever a top folder is done
+	 * and at the end. Does nothing if a refresh is running already.
+	 */
+	public void refresh(final String root, final Runnable listener) {
+		synchronized (this) {
+			if (refreshing) {
+				return;
+			}
+			refreshing = true;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					boolean loaded;
+					synchronized (FolderIndex.this) {
+						loaded = folders != null;
+					}
+					if (!loaded) {
+						HashMap<String, Counts> saved = load();
+						synchronized (FolderIndex.this) {
+							folders = saved;
+						}
+						if (listener != null) {
+							listener.run();
+						}
+					}
+					long start = System.currentTimeMillis();
+					changed = false;
+					visited = new HashSet<String>();
+					refresh(new File(root), 0, listener);
+					prune(root);
+					if (changed) {
+						save();
+					}
+					visited = null;
+					Log.e(TAG, "refreshed " + root + " in "
+							+ (System.currentTimeMillis() - start) + "ms");
+				} finally {
+					synchronized (FolderIndex.this) {
+						refreshing = false;
+					}
+				}
+				if (listener != null) {
+					listener.run();
+				}
+			}
+		});
+	}
+
+	/** Refreshes the folder and those below it and returns its counts. */
+	private Counts refresh(File folder, int depth, Runnable listener) {
+		String path = folder.getPath();
+		long mtime = folder.lastModified();
+		Counts old = getCounts(path);
+		int songs;
+		long bytes;
+		boolean noMedia;
+		long listTime;
+		String[] children;
+		if (old != null && old.holds(mtime)) {
+			songs = old.songs;
+			bytes = old.bytes;
+			noMedia = old.noMedia;
+			listTime = old.listTime;
+			children = old.children;
+		} else {
+			listTime = System.currentTimeMillis();
+			File[] files = folder.listFiles();
+			if (files == null) {
+				return null;
+			}
+			songs = 0;
+			bytes = 0;
+			noMedia = false;
+			ArrayList<String> folderNames = new ArrayList<String>();
+			for (File file : files) {
+				String name = file.getName();
+				if (name.equals(".nomedia")) {
+					noMedia = true;
+				} else if (LibraryScanner.isAudioFile(name)) {
+					songs++;
+					bytes += file.length();
+				} else if (!name.startsWith(".") && file.isDirectory()) {
+					folderNames.add(name);
+				}
+			}
+			children = folderNames.toArray(new String[folderNames.size()]);
+			changed = true;
+		}
+
+		int allSongs = songs;
+		long allBytes = bytes;
+		if (depth < MAX_DEPTH) {
+			for (String name : children) {
+				Counts child = refresh(new File(folder, name), depth + 1,
+						listener);
+				if (child != null && !child.noMedia) {
+					allSongs += child.allSongs;
+					allBytes += child.allBytes;
+				}
+			}
+		}
+		Counts counts = new Counts(songs, bytes, allSongs, allBytes, noMedia,
+				mtime, listTime, children);
+		visited.add(path);
+		synchronized (this) {
+			folders.put(path, counts);
+		}
+		boolean moved = old == null || old.allSongs != allSongs
+				|| old.allBytes != allBytes;
+		if (listener != null && moved && depth > 0 && depth <= PROGRESS_DEPTH) {
+			listener.run();
+		}
+		return counts;
+	}
+
+	/** Drops the folders below root that weren't visited, as gone. */
+	private synchronized void prune(String root) {
+		String prefix = root + "/";
+		ArrayList<String> gone = new ArrayList<String>();
+		for (String path : folders.keySet()) {
+			if ((path.equals(root) || path.startsWith(prefix))
+					&& !visited.contains(path)) {
+				gone.add(path);
+			}
+		}
+		for (String path : gone) {
+			folders.remove(path);
+		}
+		changed |= !gone.isEmpty();
+	}
+
+	private HashMap<String, Counts> load() {
+		HashMap<String, Counts> saved = new HashMap<String, Counts>();
+		if (!file.exists()) {
+			return saved;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return saved;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				int songs = in.readInt();
+				long bytes = in.readLong();
+				int allSongs = in.readInt();
+				long allBytes = in.readLong();
+				boolean noMedia = in.readBoolean();
+				long mtime = in.readLong();
+				long listTime = in.readLong();
+				String[] children = new String[in.readInt()];
+				for (int j = 0; j < children.length; j++) {
+					children[j] = in.readUTF();
+				}
+				saved.put(path, new Counts(songs, bytes, allSongs, allBytes,
+						noMedia, mtime, listTime, children));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			saved.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return saved;
+	}
+
+	/** Writes the index next to its place first and renames it over it. */
+	private void save() {
+		HashMap<String, Counts> snapshot;
+		synchronized (this) {
+			snapshot = new HashMap<String, Counts>(folders);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Counts> entry : snapshot.entrySet()) {
+				Counts counts = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(counts.songs);
+				out.writeLong(counts.bytes);
+				out.writeInt(counts.allSongs);
+				out.writeLong(counts.allBytes);
+				out.writeBoolean(counts.noMedia);
+				out.writeLong(counts.mtime);
+				out.writeLong(counts.listTime);
+				out.writeInt(counts.children.length);
+				for (String child : counts.children) {
+					out.writeUTF(child);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.e(TAG, "can't rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
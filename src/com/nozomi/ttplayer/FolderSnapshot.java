@@ -0,0 +1,163 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The folders a playlist was scanned from, with the mtime and child count each
+ * folder had at that time. Saved next to the playlist so that a rescan of the
+ * same folder only has to stat the folders and list the ones that changed.
+ */
+public class FolderSnapshot {
+
+	private static final int MAGIC = 0x74744653; // "ttFS"
+	private static final int VERSION = 2;
+
+	/**
+	 * Most SD cards are FAT formatted, which stores mtimes with a 2 second
+	 * resolution. A folder modified this close to the snapshot may have
+	 * changed again without its mtime moving.
+	 */
+	static final long MTIME_GRANULARITY = 2000;
+
+	public static class Entry {
+		public final String path;
+		public final long mtime;
+		public final int childCount;
+
+		public Entry(String path, long mtime, int childCount) {
+			this.path = path;
+			this.mtime = mtime;
+			this.childCount = childCount;
+		}
+	}
+
+	private String rootPath;
+	private int maxDepth;
+	private boolean skipDuplicates;
+	private long scanTime;
+	private ArrayList<Entry> entries;
+
+	public FolderSnapshot(String rootPath, int maxDepth,
+			boolean skipDuplicates, long scanTime, ArrayList<Entry> entries) {
+		this.rootPath = rootPath;
+		this.maxDepth = maxDepth;
+		this.skipDuplicates = skipDuplicates;
+		this.scanTime = scanTime;
+		this.entries = entries;
+	}
+
+	public String getRootPath() {
+		return rootPath;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public boolean getSkipDuplicates() {
+		return skipDuplicates;
+	}
+
+	public long getScanTime() {
+		return scanTime;
+	}
+
+	public ArrayList<Entry> getEntries() {
+		return entries;
+	}
+
+	/** Returns how many levels below the root the given folder is. */
+	public int depthOf(String path) {
+		// the separator after the root is part of a root like "/"
+		int start = rootPath.endsWith("/") ? rootPath.length() - 1 : rootPath
+				.length();
+		int depth = 0;
+		for (int i = start; i < path.length(); i++) {
+			if (path.charAt(i) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Whether the folder may have changed since the snapshot even though its
+	 * mtime is unchanged.
+	 */
+	public boolean isRacy(Entry entry) {
+		return entry.mtime + MTIME_GRANULARITY >= scanTime;
+	}
+
+	/** Returns the saved snapshot, or null if there is none or it's unreadable. */
+	public static FolderSnapshot load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 16 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			String rootPath = in.readUTF();
+			int maxDepth = in.readInt();
+			boolean skipDuplicates = in.readBoolean();
+			long scanTime = in.readLong();
+			int count = in.readInt();
+			ArrayList<Entry> entries = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+			}
+			return new FolderSnapshot(rootPath, maxDepth, skipDuplicates,
+					scanTime, entries);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public void save(File file) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), 16 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(rootPath);
+			out.writeInt(maxDepth);
+			out.writeBoolean(skipDuplicates);
+			out.writeLong(scanTime);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.path);
+				out.writeLong(entry.mtime);
+				out.writeInt(entry.childCount);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
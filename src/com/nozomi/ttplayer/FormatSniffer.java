@@ -0,0 +1,55 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+
+/**
+ * Tells the format of an audio file from its first bytes rather than its
+ * extension, which is wrong often enough, like for an m4a renamed to mp3.
+ */
+public class FormatSniffer {
+
+	public enum Format {
+		MP3, FLAC, OGG, MP4, WAV, UNKNOWN
+	}
+
+	/** Sniffs the file the window was reset to. */
+	public static Format sniff(ChannelWindow window) throws IOException {
+		if (!window.fill(0, 12)) {
+			return Format.UNKNOWN;
+		}
+		if (window.matches(0, "fLaC")) {
+			return Format.FLAC;
+		}
+		if (window.matches(0, "OggS")) {
+			return Format.OGG;
+		}
+		if (window.matches(4, "ftyp")) {
+			return Format.MP4;
+		}
+		if (window.matches(0, "RIFF") && window.matches(8, "WAVE")) {
+			return Format.WAV;
+		}
+		if (window.matches(0, "ID3")) {
+			// FLAC files sometimes get an ID3v2 tag in front
+			long end = id3v2End(window);
+			if (window.fill(end, 4) && window.matches(end, "fLaC")) {
+				return Format.FLAC;
+			}
+			return Format.MP3;
+		}
+		if (window.get(0) == 0xff && (window.get(1) & 0xe0) == 0xe0) {
+			return Format.MP3;
+		}
+		return Format.UNKNOWN;
+	}
+
+	/** Returns where the ID3v2 tag at the start of the file ends, or 0. */
+	public static long id3v2End(ChannelWindow window) throws IOException {
+		if (!window.fill(0, 10) || !window.matches(0, "ID3")) {
+			return 0;
+		}
+		int size = (window.get(6) & 0x7f) << 21 | (window.get(7) & 0x7f) << 14
+				| (window.get(8) & 0x7f) << 7 | (window.get(9) & 0x7f);
+		return 10 + size;
+	}
+}
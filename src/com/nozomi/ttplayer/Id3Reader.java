@@ -0,0 +1,259 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads title, artist, album and track number from the ID3v2 tag at the start
+ * of an mp3 and the ID3v1 tag at its end. Only the tag bytes are read, with
+ * positional reads into one buffer that is reused for every file, so a reader
+ * should stay on one thread. Frames we don't need, like cover art, are
+ * skipped without being read.
+ */
+public class Id3Reader {
+
+	private static final int WINDOW_SIZE = 8 * 1024;
+	private static final int V1_SIZE = 128;
+
+	// ID3v2.2 uses 3 letter frame ids, later versions 4 letter ones
+	private static final int TT2 = 0x545432;
+	private static final int TP1 = 0x545031;
+	private static final int TAL = 0x54414c;
+	private static final int TRK = 0x54524b;
+	private static final int TIT2 = 0x54495432;
+	private static final int TPE1 = 0x54504531;
+	private static final int TALB = 0x54414c42;
+	private static final int TRCK = 0x5452434b;
+
+	private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+	// file position of the first byte in the window
+	private long windowStart = 0;
+	// where the ID3v2 tag of the last file ends
+	private long audioStart = 0;
+
+	/** Fills in the tags of the song that the file has. */
+	public void read(FileChannel channel, Song song) throws IOException {
+		audioStart = 0;
+		readV2(channel, song);
+		if (song.getTitle() == null || song.getArtist() == null
+				|| song.getAlbum() == null) {
+			readV1(channel, song);
+		}
+	}
+
+	/**
+	 * Returns where the audio of the last file read starts, after its ID3v2
+	 * tag.
+	 */
+	public long getAudioStart() {
+		return audioStart;
+	}
+
+	/**
+	 * Makes sure the window holds the length bytes at the given position of
+	 * the file, reading them if needed. Returns false at the end of the file.
+	 */
+	private boolean fill(FileChannel channel, long position, int length)
+			throws IOException {
+		if (position >= windowStart
+				&& position + length <= windowStart + window.limit()) {
+			return true;
+		}
+		window.clear();
+		windowStart = position;
+		while (window.hasRemaining()) {
+			if (channel.read(window, position + window.position()) == -1) {
+				break;
+			}
+		}
+		window.flip();
+		return window.limit() >= length;
+	}
+
+	private int at(long position) {
+		return (int) (position - windowStart);
+	}
+
+	private void readV2(FileChannel channel, Song song) throws IOException {
+		windowStart = 0;
+		window.limit(0);
+		if (!fill(channel, 0, 10) || window.get(0) != 'I'
+				|| window.get(1) != 'D' || window.get(2) != '3') {
+			return;
+		}
+		int version = window.get(3);
+		int flags = window.get(5);
+		long end = 10 + syncsafe(window, 6);
+		long position = 10;
+		if (version < 2 || version > 4) {
+			return;
+		}
+		// ID3v2.4 tags may have a footer
+		audioStart = version == 4 && (flags & 0x10) != 0 ? end + 10 : end;
+		if (version > 2 && (flags & 0x40) != 0) {
+			// extended header
+			if (!fill(channel, position, 4)) {
+				return;
+			}
+			if (version == 4) {
+				position += syncsafe(window, at(position));
+			} else {
+				position += 4 + window.getInt(at(position));
+			}
+		}
+
+		int headerSize = version == 2 ? 6 : 10;
+		while (position + headerSize <= end) {
+			if (!fill(channel, position, headerSize)) {
+				return;
+			}
+			int offset = at(position);
+			if (window.get(offset) == 0) {
+				// padding
+				return;
+			}
+			int id;
+			int size;
+			if (version == 2) {
+				id = (window.getInt(offset) >>> 8);
+				size = window.getInt(offset + 2) & 0xffffff;
+			} else {
+				id = window.getInt(offset);
+				size = version == 4 ? syncsafe(window, offset + 4) : window
+						.getInt(offset + 4);
+			}
+			position += headerSize;
+			if (size < 0 || position + size > end) {
+				return;
+			}
+
+			if (isWanted(id) && size > 1 && size <= WINDOW_SIZE) {
+				if (!fill(channel, position, size)) {
+					return;
+				}
+				String text = decodeText(at(position), size);
+				if (id == TIT2 || id == TT2) {
+					song.setTitle(text);
+				} else if (id == TPE1 || id == TP1) {
+					song.setArtist(text);
+				} else if (id == TALB || id == TAL) {
+					song.setAlbum(text);
+				} else {
+					song.setTrack(parseTrack(text));
+				}
+			}
+			position += size;
+		}
+	}
+
+	private static boolean isWanted(int id) {
+		return id == TIT2 || id == TPE1 || id == TALB || id == TRCK
+				|| id == TT2 || id == TP1 || id == TAL || id == TRK;
+	}
+
+	private static int syncsafe(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset) & 0x7f) << 21
+				| (buffer.get(offset + 1) & 0x7f) << 14
+				| (buffer.get(offset + 2) & 0x7f) << 7
+				| (buffer.get(offset + 3) & 0x7f);
+	}
+
+	/** Decodes a text frame: an encoding byte followed by the text. */
+	private String decodeText(int offset, int size)
+			throws UnsupportedEncodingException {
+		byte[] bytes = window.array();
+		int encoding = bytes[offset];
+		int start = offset + 1;
+		int end = offset + size;
+		String charset;
+		if (encoding == 1 || encoding == 2) {
+			charset = encoding == 1 ? "UTF-16" : "UTF-16BE";
+			// ends at the first two byte null
+			for (int i = start; i + 1 < end; i += 2) {
+				if (bytes[i] == 0 && bytes[i + 1] == 0) {
+					end = i;
+					break;
+				}
+			}
+		} else {
+			charset = encoding == 3 ? "UTF-8" : legacyCharset(bytes, start,
+					end);
+			for (int i = start; i < end; i++) {
+				if (bytes[i] == 0) {
+					end = i;
+					break;
+				}
+			}
+		}
+		String text = new String(bytes, start, end - start, charset).trim();
+		return text.length() == 0 ? null : text;
+	}
+
+	/**
+	 * Text that claims to be ISO-8859-1 is, on the files our users have,
+	 * usually GBK.
+	 */
+	static String legacyCharset(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < 0) {
+				return "GBK";
+			}
+		}
+		return "ISO-8859-1";
+	}
+
+	private static int parseTrack(String text) {
+		if (text == null) {
+			return 0;
+		}
+		// "3" or "3/12"
+		int track = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			track = track * 10 + (c - '0');
+		}
+		return track;
+	}
+
+	private void readV1(FileChannel channel, Song song) throws IOException {
+		long size = channel.size();
+		if (size < V1_SIZE || !fill(channel, size - V1_SIZE, V1_SIZE)) {
+			return;
+		}
+		int offset = at(size - V1_SIZE);
+		byte[] bytes = window.array();
+		if (bytes[offset] != 'T' || bytes[offset + 1] != 'A'
+				|| bytes[offset + 2] != 'G') {
+			return;
+		}
+		if (song.getTitle() == null) {
+			song.setTitle(decodeV1(bytes, offset + 3));
+		}
+		if (song.getArtist() == null) {
+			song.setArtist(decodeV1(bytes, offset + 33));
+		}
+		if (song.getAlbum() == null) {
+			song.setAlbum(decodeV1(bytes, offset + 63));
+		}
+		// ID3v1.1 keeps the track in the last byte of the comment
+		if (song.getTrack() == 0 && bytes[offset + 125] == 0) {
+			song.setTrack(bytes[offset + 126] & 0xff);
+		}
+	}
+
+	private static String decodeV1(byte[] bytes, int offset)
+			throws UnsupportedEncodingException {
+		int end = offset;
+		while (end < offset + 30 && bytes[end] != 0) {
+			end++;
+		}
+		String text = new String(bytes, offset, end - offset, legacyCharset(
+				bytes, offset, end)).trim();
+		return text.length() == 0 ? null : text;
+	}
+}
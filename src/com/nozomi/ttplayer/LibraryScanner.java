@@ -0,0 +1,283 @@
+package com.nozomi.ttplayer;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Scans a folder tree for music on a small pool of worker threads. Every
+ * directory is one task; each worker keeps its own deque of tasks, works
+ * depth-first from its tail and steals from the head of the other workers'
+ * deques when it runs dry, so big artist/album subtrees get spread over all
+ * threads. Every directory produces a sorted run of its own songs, and the
+ * runs are merged into the final sorted list once the walk is done.
+ *
+ * ForkJoinPool is not available on our minSdkVersion, hence the hand-rolled
+ * deques.
+ */
+public class LibraryScanner {
+	final String TAG = "LibraryScanner";
+
+	/** Depth used when the user asks to include subfolders. */
+	public static final int DEFAULT_MAX_DEPTH = 8;
+
+	private static final String NO_MEDIA = ".nomedia";
+
+	private final int maxDepth;
+	private final Worker[] workers;
+
+	// number of directories queued or being scanned
+	private final AtomicInteger pending = new AtomicInteger();
+	private final ConcurrentLinkedQueue<ArrayList<Song>> runs = new ConcurrentLinkedQueue<ArrayList<Song>>();
+	private final ConcurrentLinkedQueue<FolderSnapshot.Entry> folders = new ConcurrentLinkedQueue<FolderSnapshot.Entry>();
+	private final Object idleLock = new Object();
+
+	/**
+	 * @param maxDepth
+	 *            how many levels below the root folder are scanned. 0 only
+	 *            scans the root folder itself.
+	 */
+	public LibraryScanner(int maxDepth) {
+		this.maxDepth = maxDepth;
+		int threadCount = Math.max(2, Runtime.getRuntime()
+				.availableProcessors());
+		workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * Whether a file looks like audio we can play, going by its extension.
+	 * What it really is gets sniffed from its contents when it's tagged.
+	 */
+	public static boolean isAudioFile(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot == -1) {
+			return false;
+		}
+		String extension = name.substring(dot + 1).toLowerCase(Locale.US);
+		if (extension.equals("mp3") || extension.equals("m4a")
+				|| extension.equals("mp4") || extension.equals("ogg")
+				|| extension.equals("oga") || extension.equals("wav")) {
+			return true;
+		}
+		// MediaPlayer plays FLAC since 3.1 and Opus since 5.0
+		if (extension.equals("flac")) {
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1;
+		}
+		if (extension.equals("opus")) {
+			return Build.VERSION.SDK_INT >= 21;
+		}
+		return false;
+	}
+
+	/**
+	 * Scans the given folder and returns all songs found, sorted. This method
+	 * blocks until the whole tree has been walked, so don't call it from the
+	 * main thread.
+	 */
+	public ArrayList<Song> scan(String folderPath) {
+		return scan(folderPath, 0);
+	}
+
+	/**
+	 * Scans a folder that is depth levels below the root of the library. Used
+	 * by rescans to pick up folders that were added since the last scan.
+	 */
+	public ArrayList<Song> scan(String folderPath, int depth) {
+		runs.clear();
+		folders.clear();
+		pending.set(1);
+		workers[0].push(new Task(new File(folderPath), depth));
+
+		Thread[] threads = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			threads[i] = new Thread(workers[i], TAG + "-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		ArrayList<Song> songArray = merge(new ArrayList<ArrayList<Song>>(runs));
+		runs.clear();
+		Log.e(TAG, "scanned " + folderPath + ", total " + songArray.size());
+		return songArray;
+	}
+
+	/** Returns the folders visited by the last scan. */
+	public ArrayList<FolderSnapshot.Entry> getFolders() {
+		return new ArrayList<FolderSnapshot.Entry>(folders);
+	}
+
+	/**
+	 * Merges the sorted per-directory runs pairwise until a single sorted list
+	 * is left.
+	 */
+	private static ArrayList<Song> merge(ArrayList<ArrayList<Song>> runList) {
+		if (runList.isEmpty()) {
+			return new ArrayList<Song>();
+		}
+		while (runList.size() > 1) {
+			ArrayList<ArrayList<Song>> next = new ArrayList<ArrayList<Song>>(
+					(runList.size() + 1) / 2);
+			for (int i = 0; i < runList.size(); i += 2) {
+				if (i + 1 < runList.size()) {
+					next.add(merge(runList.get(i), runList.get(i + 1)));
+				} else {
+					next.add(runList.get(i));
+				}
+			}
+			runList = next;
+		}
+		return runList.get(0);
+	}
+
+	static ArrayList<Song> merge(List<Song> a, List<Song> b) {
+		ArrayList<Song> result = new ArrayList<Song>(a.size() + b.size());
+		int i = 0;
+		int j = 0;
+		while (i < a.size() && j < b.size()) {
+			if (a.get(i).compareTo(b.get(j)) <= 0) {
+				result.add(a.get(i++));
+			} else {
+				result.add(b.get(j++));
+			}
+		}
+		while (i < a.size()) {
+			result.add(a.get(i++));
+		}
+		while (j < b.size()) {
+			result.add(b.get(j++));
+		}
+		return result;
+	}
+
+	private static class Task {
+		final File folder;
+		final int depth;
+
+		Task(File folder, int depth) {
+			this.folder = folder;
+			this.depth = depth;
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final int id;
+		private final LinkedList<Task> deque = new LinkedList<Task>();
+		// collators are not thread safe, so every worker computes the sort
+		// keys of its songs with its own
+		private final Collator collator = Collator.getInstance(Locale.CHINA);
+
+		Worker(int id) {
+			this.id = id;
+		}
+
+		void push(Task task) {
+			synchronized (deque) {
+				deque.addLast(task);
+			}
+		}
+
+		Task pollLocal() {
+			synchronized (deque) {
+				return deque.isEmpty() ? null : deque.removeLast();
+			}
+		}
+
+		Task steal() {
+			synchronized (deque) {
+				return deque.isEmpty() ? null : deque.removeFirst();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Task task = pollLocal();
+				for (int i = 1; task == null && i < workers.length; i++) {
+					task = workers[(id + i) % workers.length].steal();
+				}
+
+				if (task == null) {
+					synchronized (idleLock) {
+						if (pending.get() == 0) {
+							return;
+						}
+						try {
+							idleLock.wait(10);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					continue;
+				}
+
+				scanFolder(task);
+				if (pending.decrementAndGet() == 0) {
+					synchronized (idleLock) {
+						idleLock.notifyAll();
+					}
+				}
+			}
+		}
+
+		private void scanFolder(Task task) {
+			File[] files = task.folder.listFiles();
+			if (files == null) {
+				return;
+			}
+			if (task.depth > 0) {
+				for (File file : files) {
+					if (file.getName().equals(NO_MEDIA)) {
+						return;
+					}
+				}
+			}
+
+			folders.add(new FolderSnapshot.Entry(task.folder.getPath(),
+					task.folder.lastModified(), files.length));
+
+			ArrayList<Song> run = new ArrayList<Song>();
+			boolean queued = false;
+			for (File file : files) {
+				String name = file.getName();
+				if (isAudioFile(name)) {
+					Song song = new Song(file.getPath());
+					song.setSortKey(Song.sortKeyOf(collator, song.getName()));
+					run.add(song);
+				} else if (task.depth < maxDepth && !name.startsWith(".")
+						&& file.isDirectory()) {
+					pending.incrementAndGet();
+					push(new Task(file, task.depth + 1));
+					queued = true;
+				}
+			}
+			if (queued) {
+				synchronized (idleLock) {
+					idleLock.notifyAll();
+				}
+			}
+			if (!run.isEmpty()) {
+				Collections.sort(run);
+				runs.add(run);
+			}
+		}
+	}
+}
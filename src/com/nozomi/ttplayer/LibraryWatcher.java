@@ -0,0 +1,226 @@
+package com.nozomi.ttplayer;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Watches the folders of the library for audio files and folders that are
+ * added, moved or deleted. A FileObserver only watches one folder, so there
+ * is one for every folder. Events are collected into a {@link Batch} that is
+ * handed on once the folders have been quiet for {@link #QUIET_TIME}, or
+ * {@link #MAX_DELAY} after its first event at the latest, so copying a whole
+ * album ends up as one batch.
+ *
+ * Create it on the main thread; batches are handed on there.
+ */
+public class LibraryWatcher {
+
+	public interface OnLibraryChangedListener {
+		public void onLibraryChanged(Batch batch);
+	}
+
+	/** What changed, by path. */
+	public static class Batch {
+		public final HashSet<String> addedFiles = new HashSet<String>();
+		public final HashSet<String> removedFiles = new HashSet<String>();
+		public final HashSet<String> addedFolders = new HashSet<String>();
+		public final HashSet<String> removedFolders = new HashSet<String>();
+
+		public boolean isEmpty() {
+			return addedFiles.isEmpty() && removedFiles.isEmpty()
+					&& addedFolders.isEmpty() && removedFolders.isEmpty();
+		}
+
+		/** Adds the changes of a batch that came before this one. */
+		void mergeEarlier(Batch earlier) {
+			for (String path : earlier.addedFiles) {
+				if (!removedFiles.contains(path)) {
+					addedFiles.add(path);
+				}
+			}
+			for (String path : earlier.removedFiles) {
+				if (!addedFiles.contains(path)) {
+					removedFiles.add(path);
+				}
+			}
+			// a folder removed and added again has to be dropped and
+			// scanned, so those two don't cancel out
+			for (String path : earlier.addedFolders) {
+				if (!removedFolders.contains(path)) {
+					addedFolders.add(path);
+				}
+			}
+			removedFolders.addAll(earlier.removedFolders);
+		}
+	}
+
+	private static final long QUIET_TIME = 1500;
+	private static final long MAX_DELAY = 10000;
+	private static final int EVENTS = FileObserver.CREATE
+			| FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+			| FileObserver.MOVED_FROM | FileObserver.DELETE
+			| FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+	// inotify's IN_ISDIR, which FileObserver passes on but has no name for
+	private static final int IS_DIR = 0x40000000;
+
+	private final OnLibraryChangedListener listener;
+	private final Handler handler = new Handler();
+	// observers have to be referenced, or they stop when collected
+	private final HashMap<String, FolderObserver> observers = new HashMap<String, FolderObserver>();
+
+	// guarded by this
+	private Batch pending = new Batch();
+	private long firstEventTime = 0;
+
+	private final Runnable flush = new Runnable() {
+
+		@Override
+		public void run() {
+			Batch batch;
+			synchronized (LibraryWatcher.this) {
+				batch = pending;
+				pending = new Batch();
+				firstEventTime = 0;
+			}
+			if (!batch.isEmpty()) {
+				listener.onLibraryChanged(batch);
+			}
+		}
+	};
+
+	public LibraryWatcher(OnLibraryChangedListener listener) {
+		this.listener = listener;
+	}
+
+	/** Starts watching the given folders. */
+	public synchronized void watch(Collection<String> folders) {
+		for (String path : folders) {
+			FolderObserver observer = observers.remove(path);
+			if (observer != null) {
+				observer.stopWatching();
+			}
+			observer = new FolderObserver(path);
+			observers.put(path, observer);
+			observer.startWatching();
+		}
+	}
+
+	/** Stops watching the given folders and everything below them. */
+	public synchronized void unwatch(Collection<String> folders) {
+		Iterator<Map.Entry<String, FolderObserver>> iterator = observers
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, FolderObserver> entry = iterator.next();
+			if (isBelowAny(entry.getKey(), folders)) {
+				entry.getValue().stopWatching();
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean isBelowAny(String path, Collection<String> folders) {
+		for (String folder : folders) {
+			if (path.equals(folder) || path.startsWith(folder + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Stops watching everything and drops events not handed on yet. */
+	public synchronized void stop() {
+		for (FolderObserver observer : observers.values()) {
+			observer.stopWatching();
+		}
+		observers.clear();
+		pending = new Batch();
+		firstEventTime = 0;
+		handler.removeCallbacks(flush);
+	}
+
+	/**
+	 * Hands a batch that couldn't be applied yet on again later, together
+	 * with whatever happened since.
+	 */
+	public synchronized void requeue(Batch batch) {
+		pending.mergeEarlier(batch);
+		schedule();
+	}
+
+	private synchronized void onEvent(String folder, int event, String name) {
+		int type = event & FileObserver.ALL_EVENTS;
+		if (type == FileObserver.DELETE_SELF
+				|| type == FileObserver.MOVE_SELF) {
+			pending.removedFolders.add(folder);
+			pending.addedFolders.remove(folder);
+			schedule();
+			return;
+		}
+		if (name == null) {
+			return;
+		}
+		String path = folder + "/" + name;
+		boolean added = (type & (FileObserver.CREATE | FileObserver.MOVED_TO
+				| FileObserver.CLOSE_WRITE)) != 0;
+		boolean directory = (event & IS_DIR) != 0
+				|| (added ? new File(path).isDirectory() : observers
+						.containsKey(path));
+		if (directory) {
+			if (name.startsWith(".") || type == FileObserver.CLOSE_WRITE) {
+				return;
+			}
+			if (added) {
+				pending.addedFolders.add(path);
+			} else {
+				pending.removedFolders.add(path);
+				pending.addedFolders.remove(path);
+			}
+		} else {
+			// a file being created isn't worth reading before it's written
+			if (type == FileObserver.CREATE
+					|| !LibraryScanner.isAudioFile(name)) {
+				return;
+			}
+			if (added) {
+				pending.addedFiles.add(path);
+				pending.removedFiles.remove(path);
+			} else {
+				pending.removedFiles.add(path);
+				pending.addedFiles.remove(path);
+			}
+		}
+		schedule();
+	}
+
+	private synchronized void schedule() {
+		long now = SystemClock.uptimeMillis();
+		if (firstEventTime == 0) {
+			firstEventTime = now;
+		}
+		handler.removeCallbacks(flush);
+		long delay = Math.min(QUIET_TIME, firstEventTime + MAX_DELAY - now);
+		handler.postDelayed(flush, Math.max(0, delay));
+	}
+
+	private class FolderObserver extends FileObserver {
+		private final String folder;
+
+		FolderObserver(String folder) {
+			super(folder, EVENTS);
+			this.folder = folder;
+		}
+
+		@Override
+		public void onEvent(int event, String name) {
+			LibraryWatcher.this.onEvent(folder, event, name);
+		}
+	}
+}
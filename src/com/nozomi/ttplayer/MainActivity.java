@@ -2,15 +2,21 @@ package com.nozomi.ttplayer;
 
 import java.util.ArrayList;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView;
 import android.widget.SeekBar;
@@ -42,7 +48,24 @@ public class MainActivity extends Activity {
 	private SongAdapter songAdapter = null;
 	private ArrayList<Song> songArray = new ArrayList<Song>();
 	private ListView songListView = null;
+	// which version of the service's song list songArray is, see
+	// SongListLog; -1 while none is there whole
+	private long listEpoch = 0;
+	private int listVersion = -1;
+	// what the search box found, shown instead of songArray while it isn't
+	// empty
+	private ArrayList<Song> resultArray = new ArrayList<Song>();
+	private SongAdapter resultAdapter = null;
+	private EditText searchView = null;
+	private SearchIndex searchIndex = null;
+	private BuildSearchIndexTask searchIndexTask = null;
 	private boolean isPlaying = false;
+	// the last anchor of the playback clock from the service; the position
+	// is worked out from it, see MusicService.sendClock()
+	private int anchorPosition = 0;
+	private long anchorTime = 0;
+	private float anchorRate = 0;
+	private int duration = 0;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -64,13 +87,65 @@ public class MainActivity extends Activity {
 		registerReceiver(updateViewReceiver, filter);
 
 		Intent intent = new Intent(MusicService.ACTION_INIT);
+		intent.putExtra("list_epoch", listEpoch);
+		intent.putExtra("list_version", listVersion);
 		startService(intent);
 	}
 
+	/** Asks for what changed in the song list since the version we have. */
+	private void requestSongList() {
+		Intent intent = new Intent(MusicService.ACTION_GET_SONG_LIST);
+		intent.putExtra("list_epoch", listEpoch);
+		intent.putExtra("list_version", listVersion);
+		startService(intent);
+	}
+
+	/**
+	 * Applies the inserts and deletes of a delta from the service to
+	 * songArray, keeping the rows on screen where they are.
+	 */
+	private void applyDelta(int[] ops, ArrayList<Song> inserted) {
+		int first = songListView.getFirstVisiblePosition();
+		View top = songListView.getChildAt(0);
+		int offset = top == null ? 0 : top.getTop();
+		boolean added = false;
+		int next = 0;
+		for (int op : ops) {
+			if (op >= 0) {
+				songArray.add(op, inserted.get(next++));
+				added = true;
+				if (op < first) {
+					first++;
+				}
+			} else {
+				Song song = songArray.remove(-op - 1);
+				if (searchIndex != null) {
+					searchIndex.remove(song);
+				}
+				if (-op - 1 < first) {
+					first--;
+				}
+			}
+		}
+		songAdapter.notifyDataSetChanged();
+		if (!isSearching()) {
+			songListView.setSelectionFromTop(Math.max(0, first), offset);
+		}
+		if (added) {
+			// the index can only drop songs, so it has to be built again
+			buildSearchIndex();
+		} else {
+			updateSearch();
+		}
+	}
+
 	@Override
 	protected void onPause() {
 		super.onPause();
 		unregisterReceiver(updateViewReceiver);
+		// nothing to draw while covered; the service anchors the clock
+		// again on resume
+		handler.removeMessages(1);
 	}
 
 	private void initView() {
@@ -86,6 +161,15 @@ public class MainActivity extends Activity {
 				startService(intent);
 			}
 		});
+		rewindView.setOnLongClickListener(new OnLongClickListener() {
+
+			@Override
+			public boolean onLongClick(View v) {
+				Intent intent = new Intent(MusicService.ACTION_PREVIOUS);
+				startService(intent);
+				return true;
+			}
+		});
 
 		ImageButton closeView = (ImageButton) findViewById(R.id.close);
 		closeView.setOnClickListener(new OnClickListener() {
@@ -128,6 +212,8 @@ public class MainActivity extends Activity {
 		final ImageButton modeView = (ImageButton) findViewById(R.id.mode);
 		if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Random) {
 			modeView.setBackgroundResource(R.drawable.main_random);
+		} else if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.SmartRandom) {
+			modeView.setBackgroundResource(R.drawable.main_smart_random);
 		} else if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Order) {
 			modeView.setBackgroundResource(R.drawable.main_order);
 		} else if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Loop) {
@@ -138,6 +224,10 @@ public class MainActivity extends Activity {
 			@Override
 			public void onClick(View v) {
 				if (PreferencesUtils.getMode(MainActivity.this) == PreferencesUtils.Mode.Random) {
+					PreferencesUtils.setMode(MainActivity.this,
+							PreferencesUtils.Mode.SmartRandom);
+					modeView.setBackgroundResource(R.drawable.main_smart_random);
+				} else if (PreferencesUtils.getMode(MainActivity.this) == PreferencesUtils.Mode.SmartRandom) {
 					PreferencesUtils.setMode(MainActivity.this,
 							PreferencesUtils.Mode.Order);
 					modeView.setBackgroundResource(R.drawable.main_order);
@@ -166,6 +256,7 @@ public class MainActivity extends Activity {
 
 		songListView = (ListView) findViewById(R.id.song_list);
 		songAdapter = new SongAdapter(this, songArray);
+		resultAdapter = new SongAdapter(this, resultArray);
 		songListView.setAdapter(songAdapter);
 		songListView.setOnItemClickListener(new OnItemClickListener() {
 
@@ -173,11 +264,34 @@ public class MainActivity extends Activity {
 			public void onItemClick(AdapterView<?> parent, View view,
 					int position, long id) {
 				Intent intent = new Intent(MusicService.ACTION_PLAY_SELECT);
-				intent.putExtra("song", songArray.get(position));
+				if (isSearching()) {
+					intent.putExtra("song", resultArray.get(position));
+				} else {
+					intent.putExtra("song", songArray.get(position));
+				}
 				startService(intent);
 			}
 		});
 
+		searchView = (EditText) findViewById(R.id.search);
+		searchView.addTextChangedListener(new TextWatcher() {
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start,
+					int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before,
+					int count) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				updateSearch();
+			}
+		});
+
 		progressView = (SeekBar) findViewById(R.id.progress);
 		progressView.setTag(0);
 		progressView.setOnSeekBarChangeListener(new OnSeekBarChangeListener() {
@@ -237,6 +351,68 @@ public class MainActivity extends Activity {
 
 	}
 
+	private boolean isSearching() {
+		return searchView.getText().toString().trim().length() > 0;
+	}
+
+	/** Shows the songs matching the search box, or all songs if it's empty. */
+	private void updateSearch() {
+		if (!isSearching()) {
+			if (songListView.getAdapter() != songAdapter) {
+				songListView.setAdapter(songAdapter);
+			}
+			return;
+		}
+		resultArray.clear();
+		if (searchIndex != null) {
+			resultArray.addAll(searchIndex.search(searchView.getText()
+					.toString()));
+		}
+		if (songListView.getAdapter() != resultAdapter) {
+			songListView.setAdapter(resultAdapter);
+		} else {
+			resultAdapter.notifyDataSetChanged();
+		}
+	}
+
+	/** Indexes the song list for search once all of it has arrived. */
+	private void buildSearchIndex() {
+		if (searchIndexTask != null) {
+			searchIndexTask.cancel(false);
+		}
+		searchIndex = null;
+		searchIndexTask = new BuildSearchIndexTask(new ArrayList<Song>(
+				songArray));
+		searchIndexTask.execute();
+	}
+
+	private class BuildSearchIndexTask extends
+			AsyncTask<Void, Void, SearchIndex> {
+		private final ArrayList<Song> songs;
+
+		BuildSearchIndexTask(ArrayList<Song> songs) {
+			this.songs = songs;
+		}
+
+		@Override
+		protected SearchIndex doInBackground(Void... params) {
+			long start = System.currentTimeMillis();
+			SearchIndex index = new SearchIndex(songs);
+			Log.e("BuildSearchIndexTask", songs.size() + " songs in "
+					+ (System.currentTimeMillis() - start) + "ms");
+			return index;
+		}
+
+		@Override
+		protected void onPostExecute(SearchIndex result) {
+			if (searchIndexTask == this && !isCancelled()) {
+				searchIndex = result;
+				searchIndexTask = null;
+				updateSearch();
+			}
+		}
+	}
+
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		super.onActivityResult(requestCode, resultCode, data);
@@ -245,6 +421,9 @@ public class MainActivity extends Activity {
 				String folderPath = data.getStringExtra("folder_path");
 				Intent intent = new Intent(MusicService.ACTION_SET_FOLDER);
 				intent.putExtra("folder_path", folderPath);
+				intent.putExtra("max_depth", data.getIntExtra("max_depth", 0));
+				intent.putExtra("skip_duplicates",
+						data.getBooleanExtra("skip_duplicates", false));
 				startService(intent);
 			}
 		}
@@ -256,45 +435,69 @@ public class MainActivity extends Activity {
 		public void onReceive(Context context, Intent intent) {
 			String action = intent.getAction();
 			Log.e("onReceive", action);
-			if (action.equals(ACTION_UPDATE_SONG_LIST)) {
-				songArray.clear();
+			if (action.equals(ACTION_UPDATE_SONG_LIST)
+					&& intent.hasExtra("ops")) {
+				// a delta only applies to the version it was made from;
+				// otherwise ask for the one from ours
+				int base = intent.getIntExtra("base_version", -1);
+				if (listVersion == -1
+						|| intent.getLongExtra("list_epoch", 0) != listEpoch
+						|| base != listVersion) {
+					if (listVersion != -1) {
+						requestSongList();
+					}
+					return;
+				}
+				applyDelta(intent.getIntArrayExtra("ops"),
+						(ArrayList<Song>) intent
+								.getSerializableExtra("inserted"));
+				listVersion = intent.getIntExtra("list_version", -1);
+			} else if (action.equals(ACTION_UPDATE_SONG_LIST)) {
+				// the list comes in batches; a batch that doesn't continue
+				// what we have is stale
+				int start = intent.getIntExtra("start", 0);
+				long epoch = intent.getLongExtra("list_epoch", 0);
+				int version = intent.getIntExtra("list_version", -1);
+				if (start == 0) {
+					songArray.clear();
+					listEpoch = epoch;
+					listVersion = -1;
+				} else if (start != songArray.size() || epoch != listEpoch) {
+					return;
+				}
 				songArray.addAll((ArrayList<Song>) intent
 						.getSerializableExtra("song_array"));
 				songAdapter.notifyDataSetChanged();
-				songListView.setSelection(0);
-				Log.e("ACTION_UPDATE_SONG_LIST", "total " + songArray.size());
-			} else if (action.equals(ACTION_UPDATE_PROGRESS)) {
-				if (!progressView.isPressed()) {
-					int currentPosition = intent.getIntExtra(
-							"current_position", 0);
-					int duration = intent.getIntExtra("duration", 0);
-					positionDurationView
-							.setText(getTimeDisplay(currentPosition) + "/"
-									+ getTimeDisplay(duration));
-					if (duration == 0) {
-						progressView.setProgress(0);
-					} else {
-						progressView.setProgress(currentPosition * 1000
-								/ duration);
-					}
+				if (start == 0 && !isSearching()) {
+					songListView.setSelection(0);
 				}
-
-				isPlaying = intent.getBooleanExtra("is_playing", true);
-				if (isPlaying) {
-					handler.sendEmptyMessageDelayed(1, 500);
+				if (songArray.size() >= intent.getIntExtra("total", 0)) {
+					listVersion = version;
+					buildSearchIndex();
 				}
+				Log.e("ACTION_UPDATE_SONG_LIST", "total " + songArray.size()
+						+ "/" + intent.getIntExtra("total", 0));
+			} else if (action.equals(ACTION_UPDATE_PROGRESS)) {
+				anchorPosition = intent.getIntExtra("current_position", 0);
+				anchorTime = intent.getLongExtra("anchor_time",
+						SystemClock.elapsedRealtime());
+				anchorRate = intent.getFloatExtra("rate", 0);
+				duration = intent.getIntExtra("duration", 0);
+				progressView.setTag(duration);
+				handler.removeMessages(1);
+				handler.sendEmptyMessage(1);
 
 			} else if (action.equals(ACTION_UPDATE_PLAYER)) {
 				Song song = (Song) intent.getSerializableExtra("song");
-				int index = songArray.indexOf(song);
-				if (index != -1) {
+				int index = intent.getIntExtra("index", -1);
+				if (!isSearching() && index >= 0 && index < songArray.size()
+						&& songArray.get(index).equals(song)) {
 					songListView.setSelection(index);
 				}
-				nameView.setText(song.getName());
-				int duration = intent.getIntExtra("duration", 0);
+				nameView.setText(song.getDisplayName());
+				// the clock of the new song comes right after
+				duration = intent.getIntExtra("duration", 0);
 				progressView.setTag(duration);
-
-				handler.sendEmptyMessage(1);
 			} else if (action.equals(ACTION_UPDATE_STATE)) {
 				isPlaying = intent.getBooleanExtra("is_playing", false);
 				Log.e("ACTION_UPDATE_STATE", String.valueOf(isPlaying));
@@ -312,14 +515,41 @@ public class MainActivity extends Activity {
 		public void handleMessage(Message msg) {
 			int what = msg.what;
 			if (what == 1) {// thread update progress
-				Intent intent = new Intent(MusicService.ACTION_GET_PROGRESS);
-				startService(intent);
-				Log.e("handler", "ACTION_GET_PROGRESS");
-
+				int delay = showProgress();
+				if (delay > 0) {
+					sendEmptyMessageDelayed(1, delay);
+				}
 			}
 		}
 	};
 
+	/**
+	 * Shows where playback is by the clock and returns how long until that
+	 * shows differently, or 0 if the clock stands still.
+	 */
+	private int showProgress() {
+		long elapsed = SystemClock.elapsedRealtime() - anchorTime;
+		int position = (int) Math.min(duration,
+				anchorPosition + (long) (elapsed * anchorRate));
+		if (!progressView.isPressed()) {
+			positionDurationView.setText(getTimeDisplay(position) + "/"
+					+ getTimeDisplay(duration));
+			if (duration == 0) {
+				progressView.setProgress(0);
+			} else {
+				progressView.setProgress((int) ((long) position * 1000
+						/ duration));
+			}
+		}
+		if (anchorRate <= 0 || position >= duration) {
+			return 0;
+		}
+		// the next second on the text, or the next step of the bar
+		int step = Math.min(1000 - position % 1000,
+				Math.max(duration / 1000, 1));
+		return Math.max(16, (int) (step / anchorRate));
+	}
+
 	private String getTimeDisplay(int time) {
 		String output = "";
 		int min = time / 1000 / 60;
@@ -0,0 +1,372 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * What we know about every audio file that costs opening it to find out, so
+ * that a restarted service gets it back without opening any. The file is
+ * memory mapped and laid out as
+ *
+ * <pre>
+ * header   magic, version, count, size of the string pool
+ * records  count * (song id, file size, file mtime, title, artist, album,
+ *                   track, duration, seek table, audio start, audio end),
+ *                   sorted by song id
+ * pool     strings as length and UTF-8 bytes, and seek tables
+ * </pre>
+ *
+ * Strings and seek tables in a record are offsets into the pool, -1 for none;
+ * artists and albums that repeat are stored once. The audio region is what
+ * {@link DuplicateFinder} found, end 0 if it didn't look. A record only holds
+ * for the file while its size and mtime are the same.
+ */
+public class MetadataCache {
+
+	private static final int MAGIC = 0x74744d44; // "ttMD"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 64;
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int poolStart;
+
+	private MetadataCache(ByteBuffer buffer, int count) {
+		this.buffer = buffer;
+		this.count = count;
+		poolStart = HEADER_SIZE + count * RECORD_SIZE;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Maps the cache at the given path. Returns null if there is none or it
+	 * isn't of this version.
+	 */
+	public static MetadataCache open(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != VERSION) {
+				return null;
+			}
+			int count = buffer.getInt(8);
+			long poolSize = buffer.getInt(12);
+			if (HEADER_SIZE + (long) count * RECORD_SIZE + poolSize != buffer
+					.limit()) {
+				return null;
+			}
+			return new MetadataCache(buffer, count);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/** Returns the record of the song id, or -1. */
+	private int find(long id) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = buffer.getLong(HEADER_SIZE + middle * RECORD_SIZE);
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Fills in what the cache knows about the song, without checking that
+	 * the file is unchanged. Returns false if it knows nothing. Safe to call
+	 * from any thread.
+	 */
+	public boolean apply(Song song) {
+		int record = find(song.getId());
+		if (record == -1) {
+			return false;
+		}
+		apply(song, HEADER_SIZE + record * RECORD_SIZE);
+		return true;
+	}
+
+	/**
+	 * Like {@link #apply(Song)}, but only if the file still has the given
+	 * size and mtime.
+	 */
+	public boolean apply(Song song, long fileSize, long mtime) {
+		int record = find(song.getId());
+		if (record == -1) {
+			return false;
+		}
+		int offset = HEADER_SIZE + record * RECORD_SIZE;
+		if (buffer.getLong(offset + 8) != fileSize
+				|| buffer.getLong(offset + 16) != mtime) {
+			return false;
+		}
+		apply(song, offset);
+		return true;
+	}
+
+	private void apply(Song song, int offset) {
+		song.setTitle(string(buffer.getInt(offset + 24)));
+		song.setArtist(string(buffer.getInt(offset + 28)));
+		song.setAlbum(string(buffer.getInt(offset + 32)));
+		song.setTrack(buffer.getInt(offset + 36));
+		song.setDuration(buffer.getInt(offset + 40));
+		song.setSeekTable(seekTable(buffer.getInt(offset + 44)));
+		// a region read since stays, the file is the same
+		if (buffer.getLong(offset + 56) > 0) {
+			song.setAudioRegion(buffer.getLong(offset + 48),
+					buffer.getLong(offset + 56));
+		}
+	}
+
+	private SeekTable seekTable(int poolOffset) {
+		if (poolOffset < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[SeekTable.SIZE];
+		ByteBuffer table = buffer.duplicate();
+		table.position(poolStart + poolOffset);
+		table.get(bytes);
+		return SeekTable.read(bytes, 0);
+	}
+
+	private String string(int poolOffset) {
+		if (poolOffset < 0) {
+			return null;
+		}
+		ByteBuffer string = buffer.duplicate();
+		string.position(poolStart + poolOffset);
+		byte[] bytes = new byte[string.getShort() & 0xffff];
+		string.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Collects records and writes them as a cache. Adding a song that is
+	 * already there replaces its record. Not thread safe.
+	 */
+	public static class Writer {
+		private final SongIndex records = new SongIndex();
+		private long[] ids = new long[16];
+		private long[] fileSizes = new long[16];
+		private long[] mtimes = new long[16];
+		private String[][] strings = new String[16][];
+		private int[] tracks = new int[16];
+		private int[] durations = new int[16];
+		private SeekTable[] seekTables = new SeekTable[16];
+		private long[] audioStarts = new long[16];
+		private long[] audioEnds = new long[16];
+		private int count = 0;
+
+		public boolean contains(long id) {
+			return records.get(id) != -1;
+		}
+
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		public void add(Song song, long fileSize, long mtime) {
+			long id = song.getId();
+			int record = records.get(id);
+			if (record == -1) {
+				if (count == ids.length) {
+					grow();
+				}
+				record = count++;
+				records.put(id, record);
+			}
+			ids[record] = id;
+			fileSizes[record] = fileSize;
+			mtimes[record] = mtime;
+			strings[record] = new String[] { song.getTitle(),
+					song.getArtist(), song.getAlbum() };
+			tracks[record] = song.getTrack();
+			durations[record] = song.getDuration();
+			seekTables[record] = song.getSeekTable();
+			audioStarts[record] = song.getAudioStart();
+			audioEnds[record] = song.getAudioEnd();
+		}
+
+		/**
+		 * Carries over the records of a cache for the songs of the list that
+		 * haven't been added.
+		 */
+		public void addAll(MetadataCache cache, SongList songs) {
+			if (cache == null) {
+				return;
+			}
+			for (int i = 0; i < songs.size(); i++) {
+				long id = songs.getId(i);
+				int record = cache.find(id);
+				if (record == -1 || contains(id)) {
+					continue;
+				}
+				int offset = HEADER_SIZE + record * RECORD_SIZE;
+				Song song = new Song();
+				cache.apply(song, offset);
+				if (count == ids.length) {
+					grow();
+				}
+				int slot = count++;
+				records.put(id, slot);
+				ids[slot] = id;
+				fileSizes[slot] = cache.buffer.getLong(offset + 8);
+				mtimes[slot] = cache.buffer.getLong(offset + 16);
+				strings[slot] = new String[] { song.getTitle(),
+						song.getArtist(), song.getAlbum() };
+				tracks[slot] = song.getTrack();
+				durations[slot] = song.getDuration();
+				seekTables[slot] = song.getSeekTable();
+				audioStarts[slot] = song.getAudioStart();
+				audioEnds[slot] = song.getAudioEnd();
+			}
+		}
+
+		private void grow() {
+			int length = ids.length * 2;
+			long[] newIds = new long[length];
+			long[] newFileSizes = new long[length];
+			long[] newMtimes = new long[length];
+			String[][] newStrings = new String[length][];
+			int[] newTracks = new int[length];
+			int[] newDurations = new int[length];
+			SeekTable[] newSeekTables = new SeekTable[length];
+			long[] newAudioStarts = new long[length];
+			long[] newAudioEnds = new long[length];
+			System.arraycopy(ids, 0, newIds, 0, count);
+			System.arraycopy(fileSizes, 0, newFileSizes, 0, count);
+			System.arraycopy(mtimes, 0, newMtimes, 0, count);
+			System.arraycopy(strings, 0, newStrings, 0, count);
+			System.arraycopy(tracks, 0, newTracks, 0, count);
+			System.arraycopy(durations, 0, newDurations, 0, count);
+			System.arraycopy(seekTables, 0, newSeekTables, 0, count);
+			System.arraycopy(audioStarts, 0, newAudioStarts, 0, count);
+			System.arraycopy(audioEnds, 0, newAudioEnds, 0, count);
+			ids = newIds;
+			fileSizes = newFileSizes;
+			mtimes = newMtimes;
+			strings = newStrings;
+			tracks = newTracks;
+			durations = newDurations;
+			seekTables = newSeekTables;
+			audioStarts = newAudioStarts;
+			audioEnds = newAudioEnds;
+		}
+
+		/**
+		 * Writes the cache next to its final place first and renames it over
+		 * it, like {@link PlaylistFile#write(File, java.util.List)}.
+		 */
+		public void write(File file) throws IOException {
+			long[] sortedIds = new long[count];
+			System.arraycopy(ids, 0, sortedIds, 0, count);
+			Arrays.sort(sortedIds);
+
+			// the pool, with every distinct string once
+			HashMap<String, Integer> offsets = new HashMap<String, Integer>();
+			ByteArrayOutputStream pool = new ByteArrayOutputStream();
+			int[][] stringOffsets = new int[count][3];
+			for (int i = 0; i < count; i++) {
+				for (int j = 0; j < 3; j++) {
+					String string = strings[i][j];
+					if (string == null) {
+						stringOffsets[i][j] = -1;
+						continue;
+					}
+					Integer offset = offsets.get(string);
+					if (offset == null) {
+						byte[] bytes = string.getBytes("UTF-8");
+						int length = Math.min(bytes.length, 0xffff);
+						offset = pool.size();
+						pool.write(length >> 8);
+						pool.write(length);
+						pool.write(bytes, 0, length);
+						offsets.put(string, offset);
+					}
+					stringOffsets[i][j] = offset;
+				}
+			}
+			int[] tableOffsets = new int[count];
+			byte[] table = new byte[SeekTable.SIZE];
+			for (int i = 0; i < count; i++) {
+				if (seekTables[i] == null) {
+					tableOffsets[i] = -1;
+					continue;
+				}
+				tableOffsets[i] = pool.size();
+				seekTables[i].write(table, 0);
+				pool.write(table, 0, table.length);
+			}
+
+			File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(pool.size());
+				for (int i = 0; i < count; i++) {
+					int record = records.get(sortedIds[i]);
+					out.writeLong(ids[record]);
+					out.writeLong(fileSizes[record]);
+					out.writeLong(mtimes[record]);
+					out.writeInt(stringOffsets[record][0]);
+					out.writeInt(stringOffsets[record][1]);
+					out.writeInt(stringOffsets[record][2]);
+					out.writeInt(tracks[record]);
+					out.writeInt(durations[record]);
+					out.writeInt(tableOffsets[record]);
+					out.writeLong(audioStarts[record]);
+					out.writeLong(audioEnds[record]);
+				}
+				pool.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("can't rename " + tmp + " to " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Works out the duration of an mp3 from its frame headers, without decoding
+ * anything. The Xing/Info or VBRI header of the first frame gives it right
+ * away. Without one, a file whose first frames and a few frames further on
+ * share a bitrate is taken as CBR, and only the rest, VBR files without a
+ * header, get all their frame headers walked; for those a {@link SeekTable}
+ * is built on the way. Like {@link Id3Reader}, a scanner reuses one buffer
+ * and should stay on one thread.
+ */
+public class Mp3FrameScanner {
+
+	private static final int WINDOW_SIZE = 16 * 1024;
+	// how far after the tags the first frame may start
+	private static final int MAX_SYNC_SEARCH = 64 * 1024;
+	// first frames that must share a bitrate for a file to count as CBR
+	private static final int CBR_CHECK_FRAMES = 8;
+	// and places further on where the frame found must have it too
+	private static final int CBR_PROBES = 4;
+
+	// kbps by [MPEG 1 or not][layer - 1][index]
+	private static final int[][][] BITRATES = {
+			{
+					{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352,
+							384, 416, 448 },
+					{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256,
+							320, 384 },
+					{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224,
+							256, 320 } },
+			{
+					{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192,
+							224, 256 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+							160 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+							160 } } };
+	private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+	private long windowStart = 0;
+
+	// the header parsed last
+	private int bitrate;
+	private int sampleRate;
+	private int samplesPerFrame;
+	private int frameLength;
+	private boolean mpeg1;
+	private boolean mono;
+
+	/**
+	 * Sets the duration of the song, and its seek table if it needs one.
+	 * audioStart is where the ID3v2 tag, if any, ends.
+	 */
+	public void scan(FileChannel channel, long audioStart, Song song)
+			throws IOException {
+		windowStart = 0;
+		window.limit(0);
+		long fileSize = channel.size();
+		long audioEnd = fileSize;
+		if (fileSize >= 128 && fill(channel, fileSize - 128, 3)) {
+			int offset = at(fileSize - 128);
+			if (window.get(offset) == 'T' && window.get(offset + 1) == 'A'
+					&& window.get(offset + 2) == 'G') {
+				audioEnd -= 128;
+			}
+		}
+
+		long first = findFirstFrame(channel, audioStart, audioEnd);
+		if (first == -1) {
+			return;
+		}
+		int firstBitrate = bitrate;
+		int firstSampleRate = sampleRate;
+		int firstSamplesPerFrame = samplesPerFrame;
+		if (readVbrHeader(channel, first, song)) {
+			return;
+		}
+
+		long audioBytes = audioEnd - first;
+		long position = first;
+		boolean cbr = true;
+		for (int i = 0; i < CBR_CHECK_FRAMES && position < audioEnd; i++) {
+			if (!readHeader(channel, position) || bitrate != firstBitrate) {
+				cbr = bitrate == firstBitrate;
+				break;
+			}
+			position += frameLength;
+		}
+		for (int i = 1; cbr && i <= CBR_PROBES; i++) {
+			long probe = findFirstFrame(channel, first + audioBytes * i
+					/ (CBR_PROBES + 1), audioEnd);
+			cbr = probe == -1 || bitrate == firstBitrate;
+		}
+		if (cbr) {
+			song.setDuration((int) (audioBytes * 8 / firstBitrate));
+			song.setSeekTable(null);
+			return;
+		}
+
+		// VBR without a header: count the frames, noting where each starts
+		int[] offsets = new int[1024];
+		int frames = 0;
+		position = first;
+		while (position < audioEnd && readHeader(channel, position)) {
+			if (frames == offsets.length) {
+				int[] newOffsets = new int[offsets.length * 2];
+				System.arraycopy(offsets, 0, newOffsets, 0, frames);
+				offsets = newOffsets;
+			}
+			offsets[frames++] = (int) (position - first);
+			position += frameLength;
+		}
+		audioBytes = Math.min(audioEnd, position) - first;
+		song.setDuration((int) ((long) frames * firstSamplesPerFrame * 1000
+				/ firstSampleRate));
+		byte[] toc = new byte[100];
+		for (int i = 0; i < 100; i++) {
+			toc[i] = (byte) Math.min(255, (long) offsets[frames * i / 100]
+					* 256 / audioBytes);
+		}
+		song.setSeekTable(new SeekTable(toc, (int) audioBytes,
+				firstBitrate * 1000));
+	}
+
+	/**
+	 * Finds the first frame, one whose header is followed by another frame
+	 * header, so that a stray sync pattern isn't taken for one.
+	 */
+	private long findFirstFrame(FileChannel channel, long start, long end)
+			throws IOException {
+		long limit = Math.min(end, start + MAX_SYNC_SEARCH);
+		for (long position = start; position + 4 <= limit; position++) {
+			if (!fill(channel, position, 4)) {
+				return -1;
+			}
+			int offset = at(position);
+			if ((window.get(offset) & 0xff) != 0xff
+					|| (window.get(offset + 1) & 0xe0) != 0xe0) {
+				continue;
+			}
+			if (!readHeader(channel, position)) {
+				continue;
+			}
+			long next = position + frameLength;
+			int savedBitrate = bitrate;
+			int savedSampleRate = sampleRate;
+			int savedSamplesPerFrame = samplesPerFrame;
+			int savedFrameLength = frameLength;
+			boolean savedMpeg1 = mpeg1;
+			boolean savedMono = mono;
+			if (next >= end || readHeader(channel, next)) {
+				bitrate = savedBitrate;
+				sampleRate = savedSampleRate;
+				samplesPerFrame = savedSamplesPerFrame;
+				frameLength = savedFrameLength;
+				mpeg1 = savedMpeg1;
+				mono = savedMono;
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/** Parses the frame header at the given position. */
+	private boolean readHeader(FileChannel channel, long position)
+			throws IOException {
+		if (!fill(channel, position, 4)) {
+			return false;
+		}
+		int header = window.getInt(at(position));
+		if ((header & 0xffe00000) != 0xffe00000) {
+			return false;
+		}
+		int version = (header >>> 19) & 3; // 0 MPEG 2.5, 2 MPEG 2, 3 MPEG 1
+		int layer = 4 - ((header >>> 17) & 3);
+		int bitrateIndex = (header >>> 12) & 15;
+		int sampleRateIndex = (header >>> 10) & 3;
+		if (version == 1 || layer == 4 || bitrateIndex == 0
+				|| bitrateIndex == 15 || sampleRateIndex == 3) {
+			return false;
+		}
+		mpeg1 = version == 3;
+		mono = ((header >>> 6) & 3) == 3;
+		int padding = (header >>> 9) & 1;
+		bitrate = BITRATES[mpeg1 ? 0 : 1][layer - 1][bitrateIndex];
+		sampleRate = SAMPLE_RATES[sampleRateIndex];
+		if (version == 2) {
+			sampleRate /= 2;
+		} else if (version == 0) {
+			sampleRate /= 4;
+		}
+		if (layer == 1) {
+			samplesPerFrame = 384;
+			frameLength = (12000 * bitrate / sampleRate + padding) * 4;
+		} else {
+			samplesPerFrame = layer == 3 && !mpeg1 ? 576 : 1152;
+			frameLength = samplesPerFrame / 8 * 1000 * bitrate / sampleRate
+					+ padding;
+		}
+		return frameLength > 4;
+	}
+
+	/**
+	 * Reads the Xing/Info or VBRI header in the first frame, if there is one,
+	 * and sets the duration from it. MediaPlayer seeks with these headers
+	 * itself, so no seek table is needed.
+	 */
+	private boolean readVbrHeader(FileChannel channel, long first, Song song)
+			throws IOException {
+		int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+		long xing = first + 4 + sideInfo;
+		long frames = -1;
+		if (fill(channel, xing, 12)) {
+			int tag = window.getInt(at(xing));
+			if (tag == 0x58696e67 || tag == 0x496e666f) { // "Xing", "Info"
+				int flags = window.getInt(at(xing) + 4);
+				if ((flags & 1) != 0) {
+					frames = window.getInt(at(xing) + 8) & 0xffffffffL;
+				}
+			}
+		}
+		long vbri = first + 4 + 32;
+		if (frames == -1 && fill(channel, vbri, 18)
+				&& window.getInt(at(vbri)) == 0x56425249) { // "VBRI"
+			frames = window.getInt(at(vbri) + 14) & 0xffffffffL;
+		}
+		if (frames <= 0) {
+			return false;
+		}
+		song.setDuration((int) (frames * samplesPerFrame * 1000
+				/ sampleRate));
+		song.setSeekTable(null);
+		return true;
+	}
+
+	private boolean fill(FileChannel channel, long position, int length)
+			throws IOException {
+		if (position >= windowStart
+				&& position + length <= windowStart + window.limit()) {
+			return true;
+		}
+		window.clear();
+		windowStart = position;
+		while (window.hasRemaining()) {
+			if (channel.read(window, position + window.position()) == -1) {
+				break;
+			}
+		}
+		window.flip();
+		return window.limit() >= length;
+	}
+
+	private int at(long position) {
+		return (int) (position - windowStart);
+	}
+}
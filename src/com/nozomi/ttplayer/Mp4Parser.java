@@ -0,0 +1,177 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the duration from moov/mvhd of an MP4/M4A file and the tags from the
+ * iTunes style moov/udta/meta/ilst atoms. Atoms are walked by their headers
+ * only, so the audio data and the sample tables are never read, wherever in
+ * the file moov is.
+ */
+public class Mp4Parser {
+
+	private static final int MOOV = 0x6d6f6f76;
+	private static final int MVHD = 0x6d766864;
+	private static final int UDTA = 0x75647461;
+	private static final int META = 0x6d657461;
+	private static final int ILST = 0x696c7374;
+	private static final int DATA = 0x64617461;
+	private static final int HDLR = 0x68646c72;
+	// "©nam", "©ART", "©alb", "trkn"
+	private static final int NAM = 0xa96e616d;
+	private static final int ART = 0xa9415254;
+	private static final int ALB = 0xa9616c62;
+	private static final int TRKN = 0x74726b6e;
+
+	private final ChannelWindow window;
+	// header size of the atom last looked at
+	private int headerSize;
+
+	public Mp4Parser(ChannelWindow window) {
+		this.window = window;
+	}
+
+	/** Parses the file the window was reset to. */
+	public void parse(Song song) throws IOException {
+		long moov = find(MOOV, 0, window.size());
+		if (moov == -1) {
+			return;
+		}
+		long moovEnd = moov + atomSize(moov, window.size());
+		long moovStart = moov + headerSize;
+
+		long mvhd = find(MVHD, moovStart, moovEnd);
+		if (mvhd != -1 && window.fill(mvhd + headerSize, 32)) {
+			long content = mvhd + headerSize;
+			long timescale;
+			long duration;
+			if (window.get(content) == 1) {
+				timescale = window.getInt(content + 20) & 0xffffffffL;
+				duration = window.getLong(content + 24);
+			} else {
+				timescale = window.getInt(content + 12) & 0xffffffffL;
+				duration = window.getInt(content + 16) & 0xffffffffL;
+			}
+			if (timescale > 0 && duration > 0) {
+				song.setDuration((int) (duration * 1000 / timescale));
+			}
+		}
+
+		long udta = find(UDTA, moovStart, moovEnd);
+		if (udta == -1) {
+			return;
+		}
+		long udtaEnd = udta + atomSize(udta, moovEnd);
+		long meta = find(META, udta + headerSize, udtaEnd);
+		if (meta == -1) {
+			return;
+		}
+		long metaEnd = meta + atomSize(meta, udtaEnd);
+		long metaStart = meta + headerSize;
+		// meta is a full atom, with version and flags first, except in some
+		// QuickTime files
+		if (!window.fill(metaStart, 8)) {
+			return;
+		}
+		if (window.getInt(metaStart + 4) != HDLR) {
+			metaStart += 4;
+		}
+		long ilst = find(ILST, metaStart, metaEnd);
+		if (ilst == -1) {
+			return;
+		}
+		long ilstEnd = ilst + atomSize(ilst, metaEnd);
+		long position = ilst + headerSize;
+		long size;
+		while ((size = atomSize(position, ilstEnd)) != -1) {
+			int type = window.getInt(position + 4);
+			if (type == NAM || type == ART || type == ALB || type == TRKN) {
+				item(type, position + headerSize, position + size, song);
+			}
+			position += size;
+		}
+	}
+
+	/** Reads the data atom of an ilst item. */
+	private void item(int type, long start, long end, Song song)
+			throws IOException {
+		long data = find(DATA, start, end);
+		if (data == -1) {
+			return;
+		}
+		long dataEnd = data + atomSize(data, end);
+		// type and locale come before the value
+		long value = data + headerSize + 8;
+		int length = (int) Math.min(dataEnd - value, window.capacity());
+		if (length <= 0 || !window.fill(value, length)) {
+			return;
+		}
+		if (type == TRKN) {
+			if (length >= 4) {
+				song.setTrack(window.getInt(value) & 0xffff);
+			}
+			return;
+		}
+		String text;
+		try {
+			text = new String(window.array(), window.at(value), length,
+					"UTF-8").trim();
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		if (text.length() == 0) {
+			return;
+		}
+		if (type == NAM) {
+			song.setTitle(text);
+		} else if (type == ART) {
+			song.setArtist(text);
+		} else {
+			song.setAlbum(text);
+		}
+	}
+
+	/**
+	 * Returns the position of the first child of the given type in
+	 * [start, end), or -1.
+	 */
+	private long find(int type, long start, long end) throws IOException {
+		long position = start;
+		long size;
+		while ((size = atomSize(position, end)) != -1) {
+			if (window.getInt(position + 4) == type) {
+				return position;
+			}
+			position += size;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the size of the atom at the position, or -1 if there is none
+	 * that fits before end. Leaves the header in the window and its size in
+	 * headerSize.
+	 */
+	private long atomSize(long position, long end) throws IOException {
+		if (position + 8 > end || !window.fill(position, 8)) {
+			return -1;
+		}
+		long size = window.getInt(position) & 0xffffffffL;
+		headerSize = 8;
+		if (size == 1) {
+			if (!window.fill(position, 16)) {
+				return -1;
+			}
+			size = window.getLong(position + 8);
+			headerSize = 16;
+		} else if (size == 0) {
+			// up to the end of the file
+			size = end - position;
+		}
+		if (size < headerSize || position + size > end) {
+			return -1;
+		}
+		return size;
+	}
+}
@@ -19,11 +19,17 @@ package com.nozomi.ttplayer;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import android.os.Environment;
 import android.util.Log;
@@ -37,9 +43,57 @@ import android.util.Log;
 public class MusicRetriever {
 	final String TAG = "MusicRetriever";
 
-	private ArrayList<Song> songArray = new ArrayList<Song>();
+	/** Songs in the first batch; about one screen of the song list. */
+	public static final int FIRST_BATCH_SIZE = 20;
+	public static final int BATCH_SIZE = 1000;
+	// how long closing waits for the last background work
+	private static final long CLOSE_TIMEOUT = 500;
 
-	private Random mRandom = new Random();
+	private SongList songArray = new SongList();
+
+	// position of every song by id; kept in step with deletes, rebuilt after
+	// loads and library changes
+	private final SongIndex index = new SongIndex();
+	private boolean indexValid = false;
+	// sum of all song ids, tells the shuffle which list it was saved for
+	private long fingerprint = 0;
+
+	private final File folder = new File(
+			Environment.getExternalStorageDirectory() + "/ttplayer");
+	private final File playlistFile = new File(folder, "playlist.bin");
+	private final PlaylistJournal journal = new PlaylistJournal(folder);
+	// what the journal changes about playlist.bin: songs added, sorted, and
+	// paths deleted
+	private final ArrayList<Song> journalAdded = new ArrayList<Song>();
+	private final HashSet<String> journalDeleted = new HashSet<String>();
+	private final ShuffleEngine shuffle = new ShuffleEngine(new File(folder,
+			"shuffle.dat"));
+	private final TagExtractor tagExtractor = new TagExtractor();
+	private final File metadataFile = new File(folder, "metadata.dat");
+	// tags of the songs, so they come back without opening any file
+	private MetadataCache metadata = null;
+
+	// smart random: play/skip counts, and the alias table built from them in
+	// background. The table is null while it doesn't match the list.
+	private final SongStats stats = new SongStats();
+	private final File statsFile = new File(folder, "stats.dat");
+	private final ExecutorService background = Executors
+			.newSingleThreadExecutor();
+	private final Random mRandom = new Random();
+	private AliasTable aliasTable = null;
+	private boolean aliasTableScheduled = false;
+	private boolean statsSaveScheduled = false;
+	// whether anything was counted, so that closing has counts to save
+	private boolean statsCounted = false;
+	// bumped whenever the list changes, so that a table built for an older
+	// list is thrown away
+	private int listVersion = 0;
+	private boolean loading = false;
+	// held while the list is rebuilt from folders, so a load and changes
+	// from the LibraryWatcher don't overlap
+	private final Object folderLock = new Object();
+	// what changed in songArray, for the UI
+	private final SongListLog listLog = new SongListLog();
 
 	public MusicRetriever() {
 	}
@@ -49,14 +103,202 @@ public class MusicRetriever {
 	 * asynchronously without blocking the main thread.
 	 */
 	public void loadFromFile() {
+		beginLoad();
+		invalidateIndex();
 		songArray.clear();
+		clearJournalChanges();
+		journal.await();
+
+		PlaylistFile playlist = PlaylistFile.open(playlistFile);
+		if (playlist == null) {
+			playlist = migrate(folder);
+		}
+		if (playlist != null) {
+			songArray.setSource(playlist);
+		}
+		final MetadataCache cache = MetadataCache.open(metadataFile);
+		setMetadata(cache);
+		int replayed = journal.replay(new PlaylistJournal.Replayer() {
+
+			@Override
+			public void onAdd(String path) {
+				Song song = new Song(path);
+				if (cache != null) {
+					cache.apply(song);
+				}
+				int position = Collections.binarySearch(songArray, song);
+				if (position < 0) {
+					songArray.add(-position - 1, song);
+					noteAdded(song);
+				}
+			}
 
+			@Override
+			public void onDelete(String path) {
+				int position = Collections.binarySearch(songArray, new Song(
+						path));
+				if (position >= 0
+						&& songArray.get(position).getPath().equals(path)) {
+					noteDeleted(songArray.remove(position));
+				}
+			}
+		});
+		buildIndex();
+		synchronized (this) {
+			shuffle.restore(songArray.size(), fingerprint);
+		}
+		stats.load(statsFile);
+		listLog.reset();
+		endLoad();
+		Log.e("loadFromFile", "total " + songArray.size() + ", replayed "
+				+ replayed);
+	}
+
+	private synchronized void noteAdded(Song song) {
+		if (!journalDeleted.remove(song.getPath())) {
+			int position = Collections.binarySearch(journalAdded, song);
+			if (position < 0) {
+				journalAdded.add(-position - 1, song);
+			}
+		}
+	}
+
+	private synchronized void noteDeleted(Song song) {
+		int position = Collections.binarySearch(journalAdded, song);
+		if (position >= 0) {
+			journalAdded.remove(position);
+		} else {
+			journalDeleted.add(song.getPath());
+		}
+	}
+
+	private synchronized void clearJournalChanges() {
+		journalAdded.clear();
+		journalDeleted.clear();
+	}
+
+	/**
+	 * Rewrites playlist.bin from songArray in background once the journal
+	 * has grown long enough.
+	 */
+	private void compactIfNeeded() {
+		if (journal.needsCompaction()) {
+			clearJournalChanges();
+			journal.compact(songArray.copy(), playlistFile);
+		}
+	}
+
+	/**
+	 * Decodes the saved playlist front to back and hands it to the listener
+	 * in batches: {@link #FIRST_BATCH_SIZE} songs first, then
+	 * {@link #BATCH_SIZE} at a time. Changes still in the journal are merged
+	 * in on the way. Like the load methods, call it off the main thread.
+	 */
+	public void streamPlaylist(OnBatchLoadedListener listener) {
+		journal.await();
+		ArrayList<Song> added;
+		HashSet<String> deleted;
+		MetadataCache cache;
+		synchronized (this) {
+			added = new ArrayList<Song>(journalAdded);
+			deleted = new HashSet<String>(journalDeleted);
+			cache = metadata;
+		}
+
+		FileInputStream fis = null;
 		try {
-			File file = new File(Environment.getExternalStorageDirectory()
-					+ "/ttplayer/playlist.txt");
-			if (!file.exists()) {
-				return;
+			PlaylistFile.Reader reader = null;
+			int total = added.size();
+			if (playlistFile.exists()) {
+				fis = new FileInputStream(playlistFile);
+				reader = new PlaylistFile.Reader(fis.getChannel());
+				total += reader.size() - deleted.size();
+			}
+			BatchSender sender = new BatchSender(listener, total);
+			int next = 0;
+			Song song;
+			while (reader != null && (song = reader.next()) != null) {
+				if (cache != null) {
+					cache.apply(song);
+				}
+				while (next < added.size()
+						&& added.get(next).compareTo(song) < 0) {
+					if (!sender.add(added.get(next++))) {
+						return;
+					}
+				}
+				if (!deleted.contains(song.getPath()) && !sender.add(song)) {
+					return;
+				}
+			}
+			while (next < added.size()) {
+				if (!sender.add(added.get(next++))) {
+					return;
+				}
+			}
+			sender.finish();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static class BatchSender {
+		private final OnBatchLoadedListener listener;
+		private final int total;
+		private int start = 0;
+		private ArrayList<Song> batch = new ArrayList<Song>(FIRST_BATCH_SIZE);
+
+		BatchSender(OnBatchLoadedListener listener, int total) {
+			this.listener = listener;
+			this.total = total;
+		}
+
+		/** Returns false if the listener wants no more songs. */
+		boolean add(Song song) {
+			batch.add(song);
+			if (batch.size() == (start == 0 ? FIRST_BATCH_SIZE : BATCH_SIZE)) {
+				if (!listener.onBatchLoaded(start, batch, total)) {
+					return false;
+				}
+				start += batch.size();
+				batch = new ArrayList<Song>(BATCH_SIZE);
+			}
+			return true;
+		}
+
+		void finish() {
+			if (!batch.isEmpty() || start == 0) {
+				listener.onBatchLoaded(start, batch, total);
 			}
+		}
+	}
+
+	public interface OnBatchLoadedListener {
+		/**
+		 * Called with the songs from position start on. Return false to stop
+		 * loading.
+		 */
+		public boolean onBatchLoaded(int start, ArrayList<Song> batch,
+				int total);
+	}
+
+	/**
+	 * Converts the playlist.txt of older versions to playlist.bin and returns
+	 * it, or returns null if there is no playlist.txt.
+	 */
+	private PlaylistFile migrate(File folder) {
+		File file = new File(folder, "playlist.txt");
+		if (!file.exists()) {
+			return null;
+		}
+		try {
 			FileInputStream fis = new FileInputStream(file);
 			byte[] buffer = new byte[1024];
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -70,79 +312,879 @@ public class MusicRetriever {
 			String result = new String(bos.toByteArray(), "UTF-8");
 			bos.close();
 			String[] resultSplit = result.split("\n");
+			ArrayList<Song> songs = new ArrayList<Song>(resultSplit.length);
 			for (String path : resultSplit) {
 				if (!path.equals("")) {
-					songArray.add(new Song(path));
+					songs.add(new Song(path));
 				}
 			}
+
+			File binFile = new File(folder, "playlist.bin");
+			PlaylistFile.write(binFile, songs);
+			file.delete();
+			Log.e("migrate", "total " + songs.size());
+			return PlaylistFile.open(binFile);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
-		Log.e("loadFromFile", "total " + songArray.size());
 	}
 
 	public void loadFromFolder(String folderPath) {
-		songArray.clear();
-		File folder = new File(folderPath);
-		File[] files = folder.listFiles();
-		for (File file : files) {
-			if (file.getName().endsWith(".mp3")) {
-				songArray.add(new Song(file.getPath()));
+		loadFromFolder(folderPath, 0, false);
+	}
+
+	/**
+	 * Loads all music below the given folder, descending at most maxDepth
+	 * levels, and saves it as the playlist. With skipDuplicates, only the
+	 * first of several files with the same audio is kept.
+	 */
+	public void loadFromFolder(String folderPath, int maxDepth,
+			boolean skipDuplicates) {
+		synchronized (folderLock) {
+			loadFromFolderLocked(folderPath, maxDepth, skipDuplicates);
+		}
+	}
+
+	private void loadFromFolderLocked(String folderPath, int maxDepth,
+			boolean skipDuplicates) {
+		beginLoad();
+		invalidateIndex();
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+		File snapshotFile = new File(folder, "folders.dat");
+		FolderSnapshot snapshot = FolderSnapshot.load(snapshotFile);
+		long scanTime = System.currentTimeMillis();
+		ArrayList<FolderSnapshot.Entry> folders;
+		MetadataCache.Writer metadataWriter = new MetadataCache.Writer();
+
+		long[] historyIds = null;
+		if (snapshot != null && !songArray.isEmpty()
+				&& snapshot.getRootPath().equals(folderPath)
+				&& snapshot.getMaxDepth() == maxDepth
+				&& snapshot.getSkipDuplicates() == skipDuplicates) {
+			historyIds = getShuffleHistoryIds();
+			// the changes go to the journal
+			folders = rescan(snapshot, metadataWriter, skipDuplicates);
+			if (journal.needsCompaction()) {
+				clearJournalChanges();
+				journal.compactNow(songArray.copy(), playlistFile);
 			}
+		} else {
+			LibraryScanner scanner = new LibraryScanner(maxDepth);
+			songArray.clear();
+			ArrayList<Song> songs = scanner.scan(folderPath);
+			if (skipDuplicates) {
+				collapseDuplicates(songs);
+			}
+			tagExtractor.extract(songs, metadata, metadataWriter);
+			songArray.addAll(songs);
+			folders = scanner.getFolders();
+			clearJournalChanges();
+			journal.compactNow(songArray.copy(), playlistFile);
 		}
-		Collections.sort(songArray);
+		new FolderSnapshot(folderPath, maxDepth, skipDuplicates, scanTime,
+				folders).save(snapshotFile);
+		buildIndex();
+		saveMetadata(metadataWriter, songArray);
+		if (historyIds == null) {
+			synchronized (this) {
+				shuffle.reset(songArray.size(), fingerprint);
+			}
+		} else {
+			remapShuffle(historyIds);
+		}
+		listLog.reset();
+		endLoad();
+		Log.e("loadFromFolder", "total " + songArray.size());
+	}
 
-		try {
-			folder = new File(Environment.getExternalStorageDirectory()
-					+ "/ttplayer");
-			if (!folder.exists()) {
-				folder.mkdirs();
+	/**
+	 * Returns the folders the playlist was scanned from, or null if it wasn't
+	 * scanned from any.
+	 */
+	public ArrayList<String> getLibraryFolders() {
+		FolderSnapshot snapshot = FolderSnapshot.load(new File(folder,
+				"folders.dat"));
+		if (snapshot == null) {
+			return null;
+		}
+		ArrayList<String> folders = new ArrayList<String>();
+		for (FolderSnapshot.Entry entry : snapshot.getEntries()) {
+			folders.add(entry.path);
+		}
+		return folders;
+	}
+
+	/**
+	 * What a batch of the {@link LibraryWatcher} changes about the list,
+	 * worked out by {@link MusicRetriever#prepareChanges} for
+	 * {@link MusicRetriever#applyChanges} to make.
+	 */
+	public static class LibraryChanges {
+		// songs to drop, and their positions in removed by id
+		private final ArrayList<Song> removed = new ArrayList<Song>();
+		private final SongIndex removedIds = new SongIndex();
+		// new songs, tagged and sorted
+		private final ArrayList<Song> added = new ArrayList<Song>();
+		private final ArrayList<String> scanned = new ArrayList<String>();
+		private final MetadataCache.Writer metadataWriter = new MetadataCache.Writer();
+
+		private void remove(Song song) {
+			if (removedIds.get(song.getId()) == -1) {
+				removedIds.put(song.getId(), removed.size());
+				removed.add(song);
 			}
-			FileOutputStream fos = new FileOutputStream(folder
-					+ "/playlist.txt");
-			for (Song song : songArray) {
-				fos.write((song.getPath() + "\n").getBytes("UTF-8"));
+		}
+
+		/** Returns the folders scanned, to be watched too. */
+		public ArrayList<String> getScanned() {
+			return scanned;
+		}
+	}
+
+	/**
+	 * Works out what the {@link LibraryWatcher} saw means for the playlist,
+	 * without a rescan: songs of removed files and folders are to be dropped,
+	 * added files are tagged and added folders are scanned. Touched folders
+	 * are marked as changed in the snapshot, so the next rescan lists them
+	 * again. The list itself is left alone for
+	 * {@link #applyChanges(LibraryChanges)}. Don't call it from the main
+	 * thread.
+	 */
+	public LibraryChanges prepareChanges(LibraryWatcher.Batch batch) {
+		synchronized (folderLock) {
+			return prepareChangesLocked(batch);
+		}
+	}
+
+	private LibraryChanges prepareChangesLocked(LibraryWatcher.Batch batch) {
+		LibraryChanges changes = new LibraryChanges();
+		File snapshotFile = new File(folder, "folders.dat");
+		FolderSnapshot snapshot = FolderSnapshot.load(snapshotFile);
+		if (snapshot == null) {
+			return changes;
+		}
+		// the main thread may change the list meanwhile, but only under the
+		// lock
+		SongList songs;
+		synchronized (this) {
+			songs = songArray.copy();
+		}
+
+		// removals first, so that a folder moved away and back is scanned
+		// again; files written again are tagged again
+		HashSet<String> removedFiles = new HashSet<String>(batch.removedFiles);
+		removedFiles.addAll(batch.addedFiles);
+		HashSet<Long> removedFileIds = new HashSet<Long>();
+		for (String path : removedFiles) {
+			removedFileIds.add(Song.idOf(path));
+		}
+		ArrayList<Song> kept = new ArrayList<Song>(songs.size());
+		boolean byFolder = !batch.removedFolders.isEmpty();
+		for (int i = 0; i < songs.size(); i++) {
+			// only decode songs that may be gone, or all of them if a folder
+			// went or duplicates are looked for
+			if (!byFolder && !snapshot.getSkipDuplicates()
+					&& !removedFileIds.contains(songs.getId(i))) {
+				continue;
+			}
+			Song song = songs.get(i);
+			String path = song.getPath();
+			if (removedFiles.contains(path)
+					|| isBelow(path, batch.removedFolders)) {
+				changes.remove(song);
+			} else {
+				kept.add(song);
+			}
+		}
+
+		ArrayList<Song> newSongs = changes.added;
+		for (String path : batch.addedFiles) {
+			// files in added folders come with the folder
+			if (!isBelow(path, batch.addedFolders) && new File(path).isFile()) {
+				newSongs.add(new Song(path));
 			}
-			fos.close();
+		}
+		ArrayList<FolderSnapshot.Entry> newFolders = new ArrayList<FolderSnapshot.Entry>();
+		LibraryScanner scanner = new LibraryScanner(snapshot.getMaxDepth());
+		String root = snapshot.getRootPath();
+		if (!root.endsWith("/")) {
+			root += "/";
+		}
+		// folders still in the list from before
+		HashSet<String> known = new HashSet<String>();
+		for (FolderSnapshot.Entry entry : snapshot.getEntries()) {
+			if (!isBelow(entry.path + "/", batch.removedFolders)) {
+				known.add(entry.path);
+			}
+		}
+		for (String path : batch.addedFolders) {
+			if (!path.startsWith(root) || known.contains(path)
+					|| isBelow(path, batch.addedFolders)
+					|| snapshot.depthOf(path) > snapshot.getMaxDepth()
+					|| !new File(path).isDirectory()) {
+				continue;
+			}
+			newSongs.addAll(scanner.scan(path, snapshot.depthOf(path)));
+			newFolders.addAll(scanner.getFolders());
+		}
+		// only new songs can have made new duplicates
+		if (snapshot.getSkipDuplicates() && !newSongs.isEmpty()) {
+			dropCopies(kept, newSongs, changes.metadataWriter);
+		}
+		tagExtractor.extract(newSongs, metadata, changes.metadataWriter);
+		Collections.sort(newSongs);
+
+		// mark the folders touched as changed, with an mtime no folder has
+		HashSet<String> touched = new HashSet<String>();
+		for (String path : removedFiles) {
+			touched.add(path.substring(0, path.lastIndexOf("/")));
+		}
+		for (String path : batch.addedFolders) {
+			touched.add(path.substring(0, path.lastIndexOf("/")));
+		}
+		ArrayList<FolderSnapshot.Entry> folders = new ArrayList<FolderSnapshot.Entry>();
+		for (FolderSnapshot.Entry entry : snapshot.getEntries()) {
+			if (isBelow(entry.path + "/", batch.removedFolders)) {
+				continue;
+			}
+			if (touched.contains(entry.path)) {
+				entry = new FolderSnapshot.Entry(entry.path, 0, -1);
+			}
+			folders.add(entry);
+		}
+		for (FolderSnapshot.Entry entry : newFolders) {
+			folders.add(entry);
+			changes.scanned.add(entry.path);
+		}
+		new FolderSnapshot(snapshot.getRootPath(), snapshot.getMaxDepth(),
+				snapshot.getSkipDuplicates(), snapshot.getScanTime(), folders)
+				.save(snapshotFile);
+		Log.e("prepareChanges", "removed " + changes.removed.size()
+				+ ", added " + newSongs.size() + ", folders "
+				+ newFolders.size());
+		return changes;
+	}
+
+	/**
+	 * Makes the changes to the list, in one pass over it that decodes
+	 * nothing but what the new songs are compared with. Call it on the main
+	 * thread, which is the only one changing the list once it is loaded;
+	 * positions into the list are stale afterwards. The tags of new songs are
+	 * saved in background.
+	 */
+	public void applyChanges(LibraryChanges changes) {
+		long[] historyIds = getShuffleHistoryIds();
+		synchronized (this) {
+			listChanged();
+			int size = songArray.size();
+			int[] positions = new int[changes.removed.size()];
+			int count = 0;
+			for (int i = 0; i < size && count < positions.length; i++) {
+				int removed = changes.removedIds.get(songArray.getId(i));
+				if (removed == -1) {
+					continue;
+				}
+				Song song = changes.removed.get(removed);
+				journal.append(PlaylistJournal.DELETE, song.getPath());
+				noteDeleted(song);
+				// the songs before this one are at 0..i-count-1 by now
+				listLog.deleted(i - count);
+				positions[count++] = i;
+			}
+			songArray.removeAll(positions, count);
+
+			insertSorted(changes.added);
+			for (Song song : changes.added) {
+				journal.append(PlaylistJournal.ADD, song.getPath());
+				noteAdded(song);
+			}
+			buildIndex();
+			remapShuffle(historyIds);
+		}
+		compactIfNeeded();
+		// the writer may also hold audio regions read from songs kept
+		if (!changes.metadataWriter.isEmpty()) {
+			final MetadataCache.Writer writer = changes.metadataWriter;
+			final SongList songs = songArray.copy();
+			execute(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized (folderLock) {
+						saveMetadata(writer, songs);
+					}
+				}
+			});
+		}
+		Log.e("applyChanges", "removed " + changes.removed.size()
+				+ ", added " + changes.added.size() + ", total "
+				+ songArray.size());
+	}
+
+	/** Whether one of the folders holds the path, at any depth. */
+	private static boolean isBelow(String path, HashSet<String> folders) {
+		if (folders.isEmpty()) {
+			return false;
+		}
+		for (int slash = path.lastIndexOf('/'); slash > 0; slash = path
+				.lastIndexOf('/', slash - 1)) {
+			if (folders.contains(path.substring(0, slash))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Keeps the shuffle round going over the changed list. */
+	private synchronized void remapShuffle(long[] historyIds) {
+		int[] newPositions = new int[historyIds.length];
+		for (int i = 0; i < historyIds.length; i++) {
+			newPositions[i] = index.get(historyIds[i]);
+		}
+		shuffle.remap(newPositions, songArray.size(), fingerprint);
+	}
+
+	/**
+	 * Fills in what the metadata cache knows about the song, its duration
+	 * and seek table above all, if its file is unchanged since. For a song
+	 * played before the list is loaded, so the cache is mapped on its own.
+	 * Returns false if the cache knows nothing about it.
+	 */
+	public boolean loadMetadata(Song song) {
+		MetadataCache cache = MetadataCache.open(metadataFile);
+		if (cache == null) {
+			return false;
+		}
+		File file = new File(song.getPath());
+		return cache.apply(song, file.length(), file.lastModified());
+	}
+
+	private synchronized void setMetadata(MetadataCache metadata) {
+		this.metadata = metadata;
+		songArray.setMetadata(metadata);
+	}
+
+	/**
+	 * Writes the tags found by a scan, plus those still cached for the songs
+	 * of the list the scan didn't look at, as the new cache.
+	 */
+	private void saveMetadata(MetadataCache.Writer writer, SongList songs) {
+		writer.addAll(metadata, songs);
+		try {
+			writer.write(metadataFile);
+			setMetadata(MetadataCache.open(metadataFile));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		Log.e("loadFromFolder", "total " + songArray.size());
 	}
 
-	/** Returns a random Item. If there are no items available, returns null. */
-	public Song getRandomSong() {
+	private synchronized long[] getShuffleHistoryIds() {
+		int[] history = shuffle.getHistory();
+		long[] ids = new long[history.length];
+		for (int i = 0; i < history.length; i++) {
+			ids[i] = songArray.getId(history[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Brings songArray up to date with the folders of a previous scan. Every
+	 * folder is stat'ed, but only folders whose mtime moved are listed, and
+	 * only new folders are walked. Returns the folders for the new snapshot;
+	 * the tags of new songs go to the metadata writer.
+	 */
+	private ArrayList<FolderSnapshot.Entry> rescan(FolderSnapshot snapshot,
+			MetadataCache.Writer metadataWriter, boolean skipDuplicates) {
+		ArrayList<FolderSnapshot.Entry> folders = new ArrayList<FolderSnapshot.Entry>();
+		HashSet<String> known = new HashSet<String>();
+		HashSet<String> removed = new HashSet<String>();
+		// audio files now present in each changed folder
+		HashMap<String, HashSet<String>> changed = new HashMap<String, HashSet<String>>();
+		ArrayList<File> added = new ArrayList<File>();
+
+		for (FolderSnapshot.Entry entry : snapshot.getEntries()) {
+			known.add(entry.path);
+		}
+
+		for (FolderSnapshot.Entry entry : snapshot.getEntries()) {
+			if (removed.contains(entry.path)) {
+				continue;
+			}
+			File folder = new File(entry.path);
+			long mtime = folder.lastModified();
+			if (mtime == 0) {
+				removed.add(entry.path);
+				continue;
+			}
+			if (mtime == entry.mtime && !snapshot.isRacy(entry)) {
+				folders.add(entry);
+				continue;
+			}
+
+			File[] files = folder.listFiles();
+			if (files == null) {
+				removed.add(entry.path);
+				continue;
+			}
+			if (mtime == entry.mtime && files.length == entry.childCount) {
+				folders.add(entry);
+				continue;
+			}
+
+			int depth = snapshot.depthOf(entry.path);
+			HashSet<String> audioPaths = new HashSet<String>();
+			boolean noMedia = false;
+			for (File file : files) {
+				String name = file.getName();
+				if (name.equals(".nomedia") && depth > 0) {
+					noMedia = true;
+					break;
+				} else if (LibraryScanner.isAudioFile(name)) {
+					audioPaths.add(file.getPath());
+				} else if (depth < snapshot.getMaxDepth()
+						&& !name.startsWith(".")
+						&& !known.contains(file.getPath())
+						&& file.isDirectory()) {
+					added.add(file);
+				}
+			}
+			if (noMedia) {
+				// drop the folder together with everything below it
+				String prefix = entry.path + "/";
+				for (String path : known) {
+					if (path.equals(entry.path) || path.startsWith(prefix)) {
+						removed.add(path);
+					}
+				}
+				continue;
+			}
+			changed.put(entry.path, audioPaths);
+			folders.add(new FolderSnapshot.Entry(entry.path, mtime,
+					files.length));
+		}
+		if (!removed.isEmpty()) {
+			ArrayList<FolderSnapshot.Entry> kept = new ArrayList<FolderSnapshot.Entry>(
+					folders.size());
+			for (FolderSnapshot.Entry entry : folders) {
+				if (!removed.contains(entry.path)) {
+					kept.add(entry);
+				}
+			}
+			folders = kept;
+		}
+
+		// one pass to drop songs that are gone, compacting in place
+		int size = songArray.size();
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Song song = songArray.get(i);
+			String path = song.getPath();
+			String parent = path.substring(0, path.lastIndexOf("/"));
+			HashSet<String> audioPaths = changed.get(parent);
+			if (removed.contains(parent)
+					|| (audioPaths != null && !audioPaths.remove(path))) {
+				journal.append(PlaylistJournal.DELETE, path);
+				noteDeleted(song);
+				continue;
+			}
+			if (kept != i) {
+				songArray.set(kept, song);
+			}
+			kept++;
+		}
+		songArray.subList(kept, size).clear();
+
+		// whatever is left in the listings is new
+		ArrayList<Song> newSongs = new ArrayList<Song>();
+		for (String path : changed.keySet()) {
+			if (!removed.contains(path)) {
+				for (String audioPath : changed.get(path)) {
+					newSongs.add(new Song(audioPath));
+				}
+			}
+		}
+		if (!added.isEmpty()) {
+			LibraryScanner scanner = new LibraryScanner(snapshot.getMaxDepth());
+			for (File folder : added) {
+				if (removed.contains(folder.getParent())) {
+					continue;
+				}
+				newSongs.addAll(scanner.scan(folder.getPath(),
+						snapshot.depthOf(folder.getPath())));
+				folders.addAll(scanner.getFolders());
+			}
+		}
+		// only new songs can have made new duplicates
+		if (skipDuplicates && !newSongs.isEmpty()) {
+			dropCopies(new ArrayList<Song>(songArray), newSongs, metadataWriter);
+		}
+		tagExtractor.extract(newSongs, metadata, metadataWriter);
+		insertSorted(newSongs);
+		for (Song song : newSongs) {
+			journal.append(PlaylistJournal.ADD, song.getPath());
+			noteAdded(song);
+		}
+
+		Log.e("rescan", "changed " + changed.size() + ", removed "
+				+ removed.size() + ", added " + added.size() + ", new songs "
+				+ newSongs.size());
+		return folders;
+	}
+
+	/**
+	 * Drops all but the first song of every group of songs with the same
+	 * audio from the list, keeping its order, and returns the dropped ones.
+	 */
+	private ArrayList<Song> collapseDuplicates(List<Song> songs) {
+		// the finder reads from many threads, so not from a SongList
+		ArrayList<Song> snapshot = new ArrayList<Song>(songs);
+		HashSet<Song> dropped = new HashSet<Song>();
+		for (ArrayList<Song> group : new DuplicateFinder().find(snapshot)) {
+			dropped.addAll(group.subList(1, group.size()));
+		}
+		ArrayList<Song> result = new ArrayList<Song>(dropped.size());
+		if (dropped.isEmpty()) {
+			return result;
+		}
+		int size = snapshot.size();
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Song song = snapshot.get(i);
+			if (dropped.contains(song)) {
+				result.add(song);
+				continue;
+			}
+			if (kept != i) {
+				songs.set(kept, song);
+			}
+			kept++;
+		}
+		songs.subList(kept, size).clear();
+		Log.e("collapseDuplicates", "dropped " + result.size());
+		return result;
+	}
+
+	/**
+	 * Drops the new songs whose audio is in the list already, or in a new
+	 * song before them. Only the songs in the list as long as a new one are
+	 * compared, and the audio regions read from songs in the list go to the
+	 * metadata writer, so that they are read once.
+	 */
+	private void dropCopies(List<Song> existing, ArrayList<Song> newSongs,
+			MetadataCache.Writer writer) {
+		DuplicateFinder finder = new DuplicateFinder();
+		ArrayList<Song> copies = finder.findCopies(existing, newSongs);
+		HashSet<Song> added = new HashSet<Song>(newSongs);
+		for (Song song : finder.getMeasured()) {
+			if (!added.contains(song)) {
+				File file = new File(song.getPath());
+				writer.add(song, file.length(), file.lastModified());
+			}
+		}
+		newSongs.removeAll(new HashSet<Song>(copies));
+		Log.e("dropCopies", "dropped " + copies.size());
+	}
+
+	/**
+	 * Inserts songs into the sorted songArray. Their places are binary
+	 * searched, so only the songs compared with get decoded, and then they
+	 * go in all in one pass.
+	 */
+	private void insertSorted(ArrayList<Song> songs) {
+		if (songs.isEmpty()) {
+			return;
+		}
+		Collections.sort(songs);
+		int[] positions = new int[songs.size()];
+		ArrayList<Song> inserted = new ArrayList<Song>(songs.size());
+		for (Song song : songs) {
+			int index = Collections.binarySearch(songArray, song);
+			if (index < 0) {
+				positions[inserted.size()] = -index - 1;
+				inserted.add(song);
+			}
+		}
+		songArray.insertAll(positions, inserted);
+		for (int i = 0; i < inserted.size(); i++) {
+			// the songs inserted before this one moved it up by i
+			listLog.inserted(positions[i] + i, inserted.get(i));
+		}
+	}
+
+	/**
+	 * Returns the position of the next song in shuffle order, or -1 if there
+	 * are no songs. No song repeats until all of them have been played.
+	 */
+	public synchronized int getShuffleNextIndex() {
+		return shuffle.next();
+	}
+
+	/**
+	 * Returns the position {@link #getShuffleNextIndex()} will return next,
+	 * without moving on, or -1 if there are no songs.
+	 */
+	public synchronized int peekShuffleNextIndex() {
+		return shuffle.peekNext();
+	}
+
+	/**
+	 * Returns the position of the song played before the current one in
+	 * shuffle order, or -1 if there is none.
+	 */
+	public synchronized int getShufflePreviousIndex() {
+		return shuffle.previous();
+	}
+
+	/**
+	 * Returns the position of a random song, picked with the weights from
+	 * {@link SongStats}, or -1 if there are no songs. Picks uniformly while
+	 * the weights are being worked out in background.
+	 */
+	public synchronized int getSmartRandomIndex() {
 		if (songArray.isEmpty()) {
-			return null;
+			return -1;
+		}
+		if (aliasTable == null) {
+			scheduleAliasTable();
+			return mRandom.nextInt(songArray.size());
+		}
+		return aliasTable.next(mRandom);
+	}
+
+	/** Counts the song as played to the end. */
+	public void recordPlayed(Song song) {
+		if (song != null) {
+			stats.recordPlay(song.getId());
+			statsChanged();
+		}
+	}
+
+	/** Counts the song as skipped. */
+	public void recordSkipped(Song song) {
+		if (song != null) {
+			stats.recordSkip(song.getId());
+			statsChanged();
+		}
+	}
+
+	/**
+	 * Rebuilds the alias table and saves the counts in background. The old
+	 * table keeps serving picks until then; its weights are only a little
+	 * off.
+	 */
+	private synchronized void statsChanged() {
+		statsCounted = true;
+		scheduleAliasTable();
+		if (!statsSaveScheduled) {
+			statsSaveScheduled = true;
+			execute(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized (MusicRetriever.this) {
+						statsSaveScheduled = false;
+					}
+					stats.save(statsFile);
+				}
+			});
 		}
-		return songArray.get(mRandom.nextInt(songArray.size()));
 	}
 
-	public Song getFirstSong() {
+	private synchronized void scheduleAliasTable() {
+		if (aliasTableScheduled || loading) {
+			return;
+		}
+		aliasTableScheduled = true;
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				float[] weights;
+				int version;
+				synchronized (MusicRetriever.this) {
+					aliasTableScheduled = false;
+					if (loading) {
+						return;
+					}
+					version = listVersion;
+					int size = songArray.size();
+					weights = new float[size];
+					for (int i = 0; i < size; i++) {
+						weights[i] = stats.weight(songArray.getId(i));
+					}
+				}
+				AliasTable table = new AliasTable(weights);
+				synchronized (MusicRetriever.this) {
+					if (version == listVersion) {
+						aliasTable = table;
+					}
+				}
+			}
+		});
+	}
+
+	/** The list is about to change; anything built on it is stale. */
+	private synchronized void listChanged() {
+		listVersion++;
+		aliasTable = null;
+	}
+
+	/**
+	 * Marks the start of a load. Background work reading the list waits for
+	 * the end, see {@link #endLoad()}.
+	 */
+	private synchronized void beginLoad() {
+		loading = true;
+		listChanged();
+	}
+
+	private synchronized void endLoad() {
+		loading = false;
+		listChanged();
+	}
+
+	/** Tells the shuffle that the song at the given position was picked. */
+	public synchronized void setShuffleCurrent(int index) {
+		shuffle.setCurrent(index);
+	}
+
+	public int getFirstIndex() {
+		return songArray.isEmpty() ? -1 : 0;
+	}
+
+	/**
+	 * Returns the position after the given one, wrapping around at the end.
+	 * Starts from the first song if index is -1.
+	 */
+	public int getNextIndex(int index) {
 		if (songArray.isEmpty()) {
-			return null;
+			return -1;
+		}
+		if (index == -1 || index >= songArray.size() - 1) {
+			return 0;
 		}
-		return songArray.get(0);
+		return index + 1;
 	}
 
-	public Song getNextSong(Song song) {
+	/**
+	 * Returns the position before the given one, wrapping around at the
+	 * start.
+	 */
+	public int getPreviousIndex(int index) {
 		if (songArray.isEmpty()) {
-			return null;
+			return -1;
 		}
-		int index = songArray.indexOf(song);
-		if (index == -1 || index == songArray.size() - 1) {
-			return songArray.get(0);
-		} else {
-			return songArray.get(index + 1);
+		if (index <= 0 || index >= songArray.size()) {
+			return songArray.size() - 1;
+		}
+		return index - 1;
+	}
+
+	public Song getSong(int index) {
+		return songArray.get(index);
+	}
+
+	/** Returns the position of the song in the song list, or -1. */
+	public synchronized int indexOf(Song song) {
+		if (song == null) {
+			return -1;
+		}
+		if (!indexValid) {
+			buildIndex();
+		}
+		return index.get(song.getId());
+	}
+
+	/**
+	 * Rebuilds the id index from the song list. Ids of songs still in the
+	 * playlist file come straight from its table, so nothing gets decoded.
+	 */
+	private synchronized void buildIndex() {
+		int size = songArray.size();
+		index.clear(size);
+		fingerprint = 0;
+		for (int i = 0; i < size; i++) {
+			long id = songArray.getId(i);
+			index.put(id, i);
+			fingerprint += id;
+		}
+		indexValid = true;
+	}
+
+	private synchronized void invalidateIndex() {
+		indexValid = false;
+	}
+
+	/**
+	 * Writes what is left of the shuffle, the journal and the counts and
+	 * stops their threads, for when the service goes.
+	 */
+	public void close() {
+		shuffle.close();
+		journal.close();
+		synchronized (this) {
+			if (statsCounted) {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						stats.save(statsFile);
+					}
+				});
+			}
+		}
+		background.shutdown();
+		try {
+			background.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	public ArrayList<Song> getSongArray() {
+	/** Runs the work on the background thread, unless it was closed. */
+	private void execute(Runnable work) {
+		try {
+			background.execute(work);
+		} catch (RejectedExecutionException e) {
+			// closed, as a load still running when the service went may find
+			Log.e(TAG, "closed, not running " + work);
+		}
+	}
+
+	public SongList getSongArray() {
 		return songArray;
 	}
 
-	public void delete(Song song) {
-		songArray.remove(song);
+	/** Returns the changes made to the song list, by version. */
+	public SongListLog getListLog() {
+		return listLog;
+	}
+
+	/**
+	 * Removes the song from the list and returns where it was, or -1 if it
+	 * wasn't there. The removal is journaled, so it costs a small append
+	 * rather than a rewrite of the playlist.
+	 */
+	public int delete(Song song) {
+		int position = indexOf(song);
+		if (position != -1) {
+			synchronized (this) {
+				songArray.remove(position);
+				listLog.deleted(position);
+				listChanged();
+				fingerprint -= song.getId();
+				shuffle.remove(position, fingerprint);
+				// indexOf() made sure the index is valid
+				index.removeAndShift(song.getId());
+			}
+			journal.append(PlaylistJournal.DELETE, song.getPath());
+			noteDeleted(song);
+			compactIfNeeded();
+		}
+		return position;
 	}
 
 }
@@ -16,7 +16,9 @@
 
 package com.nozomi.ttplayer;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -28,8 +30,12 @@ import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -43,7 +49,8 @@ import android.widget.Toast;
  */
 public class MusicService extends Service implements OnCompletionListener,
 		OnPreparedListener, OnErrorListener, MusicFocusable,
-		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener {
+		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener,
+		LibraryWatcher.OnLibraryChangedListener {
 
 	// The tag we put on debug messages
 	final static String TAG = "ttplayer";
@@ -61,6 +68,7 @@ public class MusicService extends Service implements OnCompletionListener,
 	public static final String ACTION_PAUSE = "com.nozomi.ttplayer.action.PAUSE";
 	public static final String ACTION_STOP = "com.nozomi.ttplayer.action.STOP";
 	public static final String ACTION_SKIP = "com.nozomi.ttplayer.action.SKIP";
+	public static final String ACTION_PREVIOUS = "com.nozomi.ttplayer.action.PREVIOUS";
 	public static final String ACTION_SET_FOLDER = "com.nozomi.ttplayer.action.SET_FOLDER";
 	public static final String ACTION_DELETE = "com.nozomi.ttplayer.action.DELETE";
 	public static final String ACTION_INIT = "com.nozomi.ttplayer.action.INIT";
@@ -68,6 +76,8 @@ public class MusicService extends Service implements OnCompletionListener,
 	public static final String ACTION_SET_VOLUME = "com.nozomi.ttplayer.action.SET_VOLUME";
 	public static final String ACTION_GET_PROGRESS = "com.nozomi.ttplayer.action.GET_PROGRESS";
 	public static final String ACTION_SET_PROGRESS = "com.nozomi.ttplayer.action.SET_PROGRESS";
+	public static final String ACTION_GET_SONG_LIST = "com.nozomi.ttplayer.action.GET_SONG_LIST";
+	public static final String ACTION_SET_MODE = "com.nozomi.ttplayer.action.SET_MODE";
 	// The volume we set the media player to when we lose audio focus, but are
 	// allowed to reduce
 	// the volume instead of stopping playback.
@@ -75,6 +85,15 @@ public class MusicService extends Service implements OnCompletionListener,
 
 	// our media player
 	private MediaPlayer mPlayer = null;
+	// the song the mode plays after this one, prepared on a player of its own
+	// while this one plays, so it follows without a gap; see prepareNext().
+	// From Jelly Bean on mPlayer hands over to it by itself, before that it
+	// is started on completion, which still saves preparing it then
+	private MediaPlayer mNextPlayer = null;
+	private Song mNextSong = null;
+	private boolean mNextPrepared = false;
+	// where mNextPlayer was seeked to, its resume point if it is a long track
+	private int mNextStart = 0;
 
 	// our AudioFocusHelper object, if it's available (it's available on SDK
 	// level >= 8)
@@ -96,6 +115,14 @@ public class MusicService extends Service implements OnCompletionListener,
 	};
 
 	private State mState = State.Retrieving;
+	// whether the library is loading. Playback only waits for it in the
+	// Retrieving state; the song of the last run plays meanwhile, see
+	// resumeLastSong()
+	private boolean mRetrieving = true;
+	// skips asked for while the library was loading and a song played
+	private int mPendingSkips = 0;
+	// songs deleted while the library was loading, deleted once it's there
+	private final ArrayList<Song> mPendingDeletes = new ArrayList<Song>();
 
 	// if in Retrieving mode, this flag indicates whether we should start
 	// playing immediately
@@ -107,6 +134,22 @@ public class MusicService extends Service implements OnCompletionListener,
 	// start playing when we are ready. If null, we should play a random song
 	// from the device
 	private Song mWhatToPlayAfterRetrieve = null;
+	// where to start mWhatToPlayAfterRetrieve, if it is the song that was
+	// playing when the service stopped last, else -1. Only used if the
+	// checkpointer has nothing newer
+	private int mResumePosition = -1;
+	// keeps where playback is, checkpointed every CHECKPOINT_INTERVAL
+	// while playing
+	private PositionCheckpointer mCheckpointer;
+	private static final long CHECKPOINT_INTERVAL = 5000;
+	private final Runnable mCheckpointTick = new Runnable() {
+
+		@Override
+		public void run() {
+			checkpoint();
+			mHandler.postDelayed(this, CHECKPOINT_INTERVAL);
+		}
+	};
 
 	enum PauseReason {
 		UserRequest, // paused by user request
@@ -126,6 +169,8 @@ public class MusicService extends Service implements OnCompletionListener,
 	// title of the song we are currently playing
 
 	private Song song = null;
+	// position of song in the retriever's list, -1 if it isn't in there
+	private int mSongIndex = -1;
 
 	// The ID we use for the notification (the onscreen alert that appears at
 	// the notification
@@ -137,10 +182,39 @@ public class MusicService extends Service implements OnCompletionListener,
 	// Our instance of our MusicRetriever, which handles scanning for media and
 	// providing titles and URIs as we need.
 	private MusicRetriever mRetriever;
+	// the task loading mRetriever, which keeps streaming the playlist to the
+	// UI after the retriever is ready
+	private PrepareMusicRetrieverTask mRetrieverTask = null;
+	// watches the library folders once the retriever is ready, and the task
+	// applying what it saw, if one is running
+	private LibraryWatcher mWatcher = null;
+	private ApplyLibraryChangesTask mApplyTask = null;
 	private NotificationManager mNotificationManager;
 
 	private Notification mNotification = null;
 
+	// commands not carried out yet, run together once the intents waiting
+	// on the main thread are in, so that a burst can be folded up. Seeks,
+	// volume changes and skips wait until no more came for DRAIN_DELAY ms,
+	// but not longer than MAX_DRAIN_DELAY ms after the first of them
+	private static final long DRAIN_DELAY = 150;
+	private static final long MAX_DRAIN_DELAY = 400;
+	private final CommandQueue mCommands = new CommandQueue();
+	private final Handler mHandler = new Handler();
+	private boolean mDrainPosted = false;
+	private long mFirstQueuedTime = 0;
+	private final Runnable mDrain = new Runnable() {
+
+		@Override
+		public void run() {
+			mDrainPosted = false;
+			CommandQueue.Command command;
+			while ((command = mCommands.poll()) != null) {
+				processCommand(command);
+			}
+		}
+	};
+
 	/**
 	 * Makes sure the media player exists and has been reset. This will create
 	 * the media player if needed, or reset the existing media player if one
@@ -148,30 +222,35 @@ public class MusicService extends Service implements OnCompletionListener,
 	 */
 	private void createMediaPlayerIfNeeded() {
 		if (mPlayer == null) {
-			mPlayer = new MediaPlayer();
-
-			// Make sure the media player will acquire a wake-lock while
-			// playing. If we don't do
-			// that, the CPU might go to sleep while the song is playing,
-			// causing playback to stop.
-			//
-			// Remember that to use this, we have to declare the
-			// android.permission.WAKE_LOCK
-			// permission in AndroidManifest.xml.
-			mPlayer.setWakeMode(getApplicationContext(),
-					PowerManager.PARTIAL_WAKE_LOCK);
-
-			// we want the media player to notify us when it's ready preparing,
-			// and when it's done
-			// playing:
-			mPlayer.setOnPreparedListener(this);
-			mPlayer.setOnCompletionListener(this);
-			mPlayer.setOnErrorListener(this);
+			mPlayer = newMediaPlayer();
 		} else {
 			mPlayer.reset();
 		}
 	}
 
+	private MediaPlayer newMediaPlayer() {
+		MediaPlayer player = new MediaPlayer();
+
+		// Make sure the media player will acquire a wake-lock while
+		// playing. If we don't do
+		// that, the CPU might go to sleep while the song is playing,
+		// causing playback to stop.
+		//
+		// Remember that to use this, we have to declare the
+		// android.permission.WAKE_LOCK
+		// permission in AndroidManifest.xml.
+		player.setWakeMode(getApplicationContext(),
+				PowerManager.PARTIAL_WAKE_LOCK);
+
+		// we want the media player to notify us when it's ready preparing,
+		// and when it's done
+		// playing:
+		player.setOnPreparedListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+		return player;
+	}
+
 	@Override
 	public void onCreate() {
 		Log.e("onCreate", "onCreate");
@@ -181,6 +260,7 @@ public class MusicService extends Service implements OnCompletionListener,
 		// Create the retriever and start an asynchronous task that will prepare
 		// it.
 		mRetriever = new MusicRetriever();
+		mCheckpointer = new PositionCheckpointer(getFilesDir());
 
 		// create the Audio Focus Helper, if the Audio Focus feature is
 		// available (SDK 8 or above)
@@ -189,9 +269,30 @@ public class MusicService extends Service implements OnCompletionListener,
 		mWhatToPlayAfterRetrieve = PreferencesUtils.loadSong(this);
 		if (mWhatToPlayAfterRetrieve != null) {
 			mStartPlayingAfterRetrieve = true;
+			mResumePosition = PreferencesUtils.loadPosition(this);
 		}
 
-		(new PrepareMusicRetrieverTask(mRetriever, this)).execute();
+		mRetrieverTask = new PrepareMusicRetrieverTask(mRetriever, this);
+		mRetrieverTask.execute();
+		resumeLastSong();
+	}
+
+	/**
+	 * Starts preparing the song of the last run right away, while the library
+	 * loads, so the time to the first sound doesn't depend on its size. The
+	 * song only needs its file, and its seek table from the metadata cache,
+	 * since the saved position is in song time; where it is in the list is
+	 * looked up once the list is there, in onMusicRetrieverPrepared().
+	 */
+	private void resumeLastSong() {
+		Song last = mWhatToPlayAfterRetrieve;
+		if (last == null || !new File(last.getPath()).isFile()) {
+			return;
+		}
+		mRetriever.loadMetadata(last);
+		mStartPlayingAfterRetrieve = false;
+		tryToGetAudioFocus();
+		playSong(last, -1);
 	}
 
 	/**
@@ -202,36 +303,75 @@ public class MusicService extends Service implements OnCompletionListener,
 	 */
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		String action = intent.getAction();
-		if (action.equals(ACTION_PLAY)) {
+		if (mCommands.add(intent)) {
+			long now = SystemClock.uptimeMillis();
+			if (!mDrainPosted) {
+				mDrainPosted = true;
+				mFirstQueuedTime = now;
+			}
+			mHandler.removeCallbacks(mDrain);
+			if (mCommands.canWait()) {
+				mHandler.postAtTime(mDrain, Math.min(now + DRAIN_DELAY,
+						mFirstQueuedTime + MAX_DRAIN_DELAY));
+			} else {
+				mHandler.post(mDrain);
+			}
+		}
+
+		return START_NOT_STICKY; // Means we started the service, but don't want
+									// it to
+									// restart in case it's killed.
+	}
+
+	private void processCommand(CommandQueue.Command command) {
+		Intent intent = command.intent;
+		switch (command.id) {
+		case CommandQueue.PLAY:
 			processPlayRequest();
-		} else if (action.equals(ACTION_PAUSE)) {
+			break;
+		case CommandQueue.PAUSE:
 			processPauseRequest();
-		} else if (action.equals(ACTION_SKIP)) {
-			processSkipRequest();
-		} else if (action.equals(ACTION_STOP)) {
+			break;
+		case CommandQueue.SKIP:
+			processSkipRequest(command.count);
+			break;
+		case CommandQueue.PREVIOUS:
+			processPreviousRequest(command.count);
+			break;
+		case CommandQueue.STOP:
 			processStopRequest();
-		} else if (action.equals(ACTION_REWIND)) {
+			break;
+		case CommandQueue.REWIND:
 			processRewindRequest();
-		} else if (action.equals(ACTION_SET_FOLDER)) {
+			break;
+		case CommandQueue.SET_FOLDER:
 			processSetFolderRequest(intent);
-		} else if (action.equals(ACTION_DELETE)) {
+			break;
+		case CommandQueue.DELETE:
 			processDeleteRequest(intent);
-		} else if (action.equals(ACTION_INIT)) {
-			processInitRequest();
-		} else if (action.equals(ACTION_PLAY_SELECT)) {
+			break;
+		case CommandQueue.INIT:
+			processInitRequest(intent);
+			break;
+		case CommandQueue.PLAY_SELECT:
 			processPlaySelectRequest(intent);
-		} else if (action.equals(ACTION_SET_VOLUME)) {
+			break;
+		case CommandQueue.SET_VOLUME:
 			processPlaySetVolumeRequest();
-		} else if (action.equals(ACTION_GET_PROGRESS)) {
+			break;
+		case CommandQueue.GET_PROGRESS:
 			processGetProgressRequest();
-		} else if (action.equals(ACTION_SET_PROGRESS)) {
+			break;
+		case CommandQueue.SET_PROGRESS:
 			processSetProgressRequest(intent);
+			break;
+		case CommandQueue.GET_SONG_LIST:
+			processGetSongListRequest(intent);
+			break;
+		case CommandQueue.SET_MODE:
+			processSetModeRequest();
+			break;
 		}
-
-		return START_NOT_STICKY; // Means we started the service, but don't want
-									// it to
-									// restart in case it's killed.
 	}
 
 	private void processPlayRequest() {
@@ -256,8 +396,10 @@ public class MusicService extends Service implements OnCompletionListener,
 			// 'foreground service' state.
 			mState = State.Playing;
 			processUpdateStateRequest();
-			setUpAsForeground(song.getName() + " (playing)");
+			setUpAsForeground(song.getDisplayName() + " (playing)");
 			configAndStartMediaPlayer();
+			startCheckpoints();
+			processGetProgressRequest();
 
 		}
 	}
@@ -276,6 +418,9 @@ public class MusicService extends Service implements OnCompletionListener,
 			mState = State.Paused;
 			processUpdateStateRequest();
 			mPlayer.pause();
+			checkpoint();
+			stopCheckpoints();
+			processGetProgressRequest();
 			relaxResources(false); // while paused, we always retain the
 									// MediaPlayer
 
@@ -285,49 +430,77 @@ public class MusicService extends Service implements OnCompletionListener,
 	private void processRewindRequest() {
 		if (mState == State.Playing || mState == State.Paused) {
 			mPlayer.seekTo(0);
-			processGetProgressRequest();
+			// seeking may take a while, so don't ask the player where it is
+			sendClock(0);
 		}
 	}
 
 	private void processSetFolderRequest(Intent intent) {
 		processStopRequest();
+		stopWatching();
 		String folderPath = intent.getStringExtra("folder_path");
+		int maxDepth = intent.getIntExtra("max_depth", 0);
+		boolean skipDuplicates = intent.getBooleanExtra("skip_duplicates",
+				false);
 		mState = State.Retrieving;
+		mRetrieving = true;
+		mPendingSkips = 0;
+		mPendingDeletes.clear();
 		processUpdateStateRequest();
 		mStartPlayingAfterRetrieve = false;
 
-		(new PrepareMusicRetrieverTask(mRetriever, this, folderPath)).execute();
+		mRetrieverTask.cancel(false);
+		mRetrieverTask = new PrepareMusicRetrieverTask(mRetriever, this,
+				folderPath, maxDepth, skipDuplicates);
+		mRetrieverTask.execute();
 
 	}
 
 	private void processDeleteRequest(Intent intent) {
 		Song song = (Song) intent.getSerializableExtra("song");
+		if (mRetrieving) {
+			// the list is still being loaded in background, but the song
+			// resumed meanwhile can stop right away
+			mPendingDeletes.add(song);
+			if (song.equals(this.song)) {
+				processStopRequest();
+			}
+			return;
+		}
+		deleteSong(song);
+	}
+
+	private void deleteSong(Song song) {
+		int version = mRetriever.getListLog().getVersion();
 		mRetriever.delete(song);
+		mSongIndex = mRetriever.indexOf(this.song);
 
-		intent = new Intent(MainActivity.ACTION_UPDATE_SONG_LIST);
-		intent.putExtra("song_array", mRetriever.getSongArray());
-		sendBroadcast(intent);
+		if (mRetrieverTask.getStatus() == AsyncTask.Status.FINISHED) {
+			// the activity has the whole list, it only needs to drop the song
+			sendSongListChanges(version);
+		} else {
+			sendSongList();
+		}
 
 		if (song.equals(this.song)) {
 			processStopRequest();
+		} else if (song.equals(mNextSong)) {
+			prepareNext();
 		}
 	}
 
-	private void processInitRequest() {
+	private void processInitRequest(Intent request) {
 		processUpdateStateRequest();
-
-		if (mState != State.Retrieving) {
-			Intent intent = new Intent(MainActivity.ACTION_UPDATE_SONG_LIST);
-			intent.putExtra("song_array", mRetriever.getSongArray());
-			sendBroadcast(intent);
-		}
+		processGetSongListRequest(request);
 
 		if (mState == State.Playing || mState == State.Paused) {
 			Intent intent = new Intent(MainActivity.ACTION_UPDATE_PLAYER);
 			intent.putExtra("song", song);
-			intent.putExtra("duration", mPlayer.getDuration());
+			intent.putExtra("index", mSongIndex);
+			intent.putExtra("duration", getDuration());
 			sendBroadcast(intent);
 		}
+		processGetProgressRequest();
 
 	}
 
@@ -338,10 +511,11 @@ public class MusicService extends Service implements OnCompletionListener,
 		// part of the Intent. This Intent is sent by {@link MainActivity} after
 		// the user
 		// specifies the URL/path via an alert box.
-		if (mState == State.Retrieving) {
+		if (mRetrieving) {
 			// we'll play the requested URL right after we finish retrieving
 			mWhatToPlayAfterRetrieve = (Song) intent
 					.getSerializableExtra("song");
+			mResumePosition = -1;
 			mStartPlayingAfterRetrieve = true;
 		} else if (mState == State.Playing || mState == State.Paused
 				|| mState == State.Stopped) {
@@ -355,12 +529,61 @@ public class MusicService extends Service implements OnCompletionListener,
 			float volume = PreferencesUtils.getVolume(this) * 0.01f;
 			mPlayer.setVolume(volume, volume);
 		}
+		if (mNextPrepared) {
+			setNextVolume();
+		}
+	}
+
+	private void processSetModeRequest() {
+		prepareNext();
 	}
 
-	private void processSkipRequest() {
+	/** Skips count songs ahead, preparing only the last. */
+	private void processSkipRequest(int count) {
+		if (mRetrieving) {
+			// there is no list to skip in yet
+			if (mState == State.Playing || mState == State.Paused) {
+				mPendingSkips += count;
+			}
+			return;
+		}
 		if (mState == State.Playing || mState == State.Paused) {
+			mRetriever.recordSkipped(song);
 			tryToGetAudioFocus();
-			playNextSong(null);
+			playNextSong(null, count);
+		}
+	}
+
+	/** Goes count songs back, preparing only the last. */
+	private void processPreviousRequest(int count) {
+		if (mRetrieving) {
+			processRewindRequest();
+			return;
+		}
+		if (mState == State.Playing || mState == State.Paused) {
+			boolean random = PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Random;
+			int index = mSongIndex;
+			boolean moved = false;
+			for (int i = 0; i < count; i++) {
+				int previous;
+				if (random) {
+					previous = mRetriever.getShufflePreviousIndex();
+				} else {
+					previous = mRetriever.getPreviousIndex(index);
+				}
+				if (previous == -1) {
+					break;
+				}
+				index = previous;
+				moved = true;
+			}
+			if (!moved) {
+				// nothing before this song, start it over
+				processRewindRequest();
+				return;
+			}
+			tryToGetAudioFocus();
+			playSong(mRetriever.getSong(index), index);
 		}
 	}
 
@@ -371,10 +594,12 @@ public class MusicService extends Service implements OnCompletionListener,
 	private void processStopRequest(boolean force) {
 		if (mState == State.Playing || mState == State.Paused || force) {
 			if (mState == State.Playing && song != null) {
-				PreferencesUtils.saveSong(this, song);
+				PreferencesUtils.saveSong(this, song, getCurrentPosition());
 			}else{
 				PreferencesUtils.saveSong(this, null);
 			}
+			checkpoint();
+			stopCheckpoints();
 
 			mState = State.Stopped;
 			processUpdateStateRequest();
@@ -382,34 +607,144 @@ public class MusicService extends Service implements OnCompletionListener,
 			// let go of all resources...
 			relaxResources(true);
 			giveUpAudioFocus();
+			processGetProgressRequest();
 
 			// service is no longer necessary. Will be started again if needed.
 			stopSelf();
 		}
 	}
 
+	/**
+	 * Tells the UI where playback is now. Only sent when playback starts,
+	 * stops or jumps; see {@link #sendClock(int)}.
+	 */
 	private void processGetProgressRequest() {
-		Intent intent = new Intent(MainActivity.ACTION_UPDATE_PROGRESS);
 		if (mState == State.Playing || mState == State.Paused) {
-			intent.putExtra("current_position", mPlayer.getCurrentPosition());
-			intent.putExtra("duration", mPlayer.getDuration());
-			intent.putExtra("is_playing", true);
+			sendClock(getCurrentPosition());
 		} else {
-			intent.putExtra("current_position", 0);
-			intent.putExtra("duration", 0);
-			intent.putExtra("is_playing", false);
+			sendClock(0);
 		}
+	}
+
+	/**
+	 * Sends the UI an anchor for its playback clock: the position, the
+	 * {@link SystemClock#elapsedRealtime()} it was taken at and the rate
+	 * playback moves on from there, 0 while the player isn't running. The UI
+	 * works out the position from that on its own until the next anchor.
+	 */
+	private void sendClock(int position) {
+		Intent intent = new Intent(MainActivity.ACTION_UPDATE_PROGRESS);
+		boolean hasSong = mState == State.Playing || mState == State.Paused;
+		boolean running = hasSong && mPlayer != null && mPlayer.isPlaying();
+		intent.putExtra("current_position", hasSong ? position : 0);
+		intent.putExtra("duration", hasSong ? getDuration() : 0);
+		intent.putExtra("anchor_time", SystemClock.elapsedRealtime());
+		intent.putExtra("rate", running ? 1f : 0f);
+		intent.putExtra("is_playing", mState == State.Playing);
 		sendBroadcast(intent);
 	}
 
 	private void processSetProgressRequest(Intent intent) {
 		if (mState == State.Playing || mState == State.Paused) {
 			int progress = intent.getIntExtra("progress", 0);
-			mPlayer.seekTo(progress * mPlayer.getDuration() / 1000);
-			processGetProgressRequest();
+			int duration = getDuration();
+			int songTime = (int) ((long) progress * duration / 1000);
+			int time = songTime;
+			SeekTable seekTable = song.getSeekTable();
+			if (seekTable != null) {
+				time = seekTable.toPlayerTime(time, duration);
+			}
+			mPlayer.seekTo(time);
+			sendClock(songTime);
+		}
+	}
+
+	/**
+	 * Returns the duration of the current song, the one worked out from its
+	 * frames if there is one. MediaPlayer guesses it from the first frame for
+	 * VBR files without a header.
+	 */
+	private int getDuration() {
+		int duration = song.getDuration();
+		return duration > 0 ? duration : mPlayer.getDuration();
+	}
+
+	private int getCurrentPosition() {
+		int position = mPlayer.getCurrentPosition();
+		SeekTable seekTable = song.getSeekTable();
+		if (seekTable == null) {
+			return position;
+		}
+		return Math.min(seekTable.fromPlayerTime(position, getDuration()),
+				getDuration());
+	}
+
+	/**
+	 * Brings the UI's song list up to date. The UI sends the epoch and
+	 * version of the list it has, version -1 for none, and gets nothing if
+	 * that is the current one, what changed since if that is known, or else
+	 * the whole list.
+	 */
+	private void processGetSongListRequest(Intent intent) {
+		// the list is on its way while retrieving, and sent again once the
+		// library changes being applied are in
+		if (mRetrieving || mApplyTask != null) {
+			return;
+		}
+		SongListLog.Delta delta = mRetriever.getListLog().since(
+				intent.getLongExtra("list_epoch", 0),
+				intent.getIntExtra("list_version", -1));
+		if (delta == null) {
+			sendSongList();
+		} else if (!delta.isEmpty()) {
+			sendDelta(delta);
+		}
+	}
+
+	/**
+	 * Sends the changes to the song list since the given version, to a UI
+	 * that is there already. The whole list goes if they are too many.
+	 */
+	private void sendSongListChanges(int version) {
+		SongListLog log = mRetriever.getListLog();
+		SongListLog.Delta delta = log.since(log.getEpoch(), version);
+		if (delta == null) {
+			sendSongList();
+		} else if (!delta.isEmpty()) {
+			sendDelta(delta);
 		}
 	}
 
+	private void sendDelta(SongListLog.Delta delta) {
+		Intent intent = new Intent(MainActivity.ACTION_UPDATE_SONG_LIST);
+		intent.putExtra("list_epoch", mRetriever.getListLog().getEpoch());
+		intent.putExtra("base_version", delta.fromVersion);
+		intent.putExtra("list_version", delta.toVersion);
+		intent.putExtra("ops", delta.ops);
+		intent.putExtra("inserted", delta.inserted);
+		sendBroadcast(intent);
+	}
+
+	/**
+	 * Sends the whole song list to the UI, in batches of
+	 * {@link MusicRetriever#BATCH_SIZE} so that no broadcast gets too big.
+	 * Any batches still being streamed are stale after that, so streaming
+	 * stops.
+	 */
+	private void sendSongList() {
+		mRetrieverTask.stopStreaming();
+
+		SongList songs = mRetriever.getSongArray();
+		int total = songs.size();
+		int start = 0;
+		do {
+			int end = Math.min(total, start + MusicRetriever.BATCH_SIZE);
+			onMusicRetrieverBatch(start,
+					new ArrayList<Song>(songs.subList(start, end)), total);
+			start = end;
+		} while (start < total);
+	}
+
 	private void processUpdateStateRequest() {
 		Log.e("processUpdateStateRequest", mState.name());
 		Intent intent = new Intent(MainActivity.ACTION_UPDATE_STATE);
@@ -436,6 +771,7 @@ public class MusicService extends Service implements OnCompletionListener,
 
 		// stop and release the Media Player, if it's available
 		if (releaseMediaPlayer && mPlayer != null) {
+			releaseNext();
 			mPlayer.reset();
 			mPlayer.release();
 			mPlayer = null;
@@ -477,6 +813,9 @@ public class MusicService extends Service implements OnCompletionListener,
 			float volume = PreferencesUtils.getVolume(this) * 0.01f;
 			mPlayer.setVolume(volume, volume);
 		}
+		if (mNextPrepared) {
+			setNextVolume();
+		}
 
 		if (!mPlayer.isPlaying()) {
 			mPlayer.start();
@@ -496,46 +835,86 @@ public class MusicService extends Service implements OnCompletionListener,
 	 * the URL or path to the song that will be played next.
 	 */
 	private void playNextSong(Song song) {
-		mState = State.Stopped;
-		processUpdateStateRequest();
-		relaxResources(false); // release everything except MediaPlayer
+		playNextSong(song, 1);
+	}
 
-		try {
-			if (song == null) {
-				PreferencesUtils.Mode mode = PreferencesUtils.getMode(this);
-				if (mode == PreferencesUtils.Mode.Random) {
-					song = mRetriever.getRandomSong();
-				} else if (mode == PreferencesUtils.Mode.Order) {
-					if (this.song == null) {
-						song = mRetriever.getFirstSong();
-					} else {
-						song = mRetriever.getNextSong(this.song);
-					}
-				} else if (mode == PreferencesUtils.Mode.Loop) {
-					if (this.song == null) {
-						song = mRetriever.getFirstSong();
-					} else {
-						song = this.song;
+	/**
+	 * Like {@link #playNextSong(Song)}, but with no song given it moves on
+	 * steps songs at once, as if skipping that many times.
+	 */
+	private void playNextSong(Song song, int steps) {
+		int index = -1;
+		PreferencesUtils.Mode mode = PreferencesUtils.getMode(this);
+		if (song == null) {
+			if (mode == PreferencesUtils.Mode.Random) {
+				for (int i = 0; i < steps; i++) {
+					index = mRetriever.getShuffleNextIndex();
+				}
+			} else if (mode == PreferencesUtils.Mode.SmartRandom) {
+				// every pick is as random as the last
+				index = mRetriever.getSmartRandomIndex();
+			} else if (mode == PreferencesUtils.Mode.Order) {
+				if (this.song == null) {
+					index = mRetriever.getFirstIndex();
+				} else {
+					index = mSongIndex;
+					for (int i = 0; i < steps; i++) {
+						index = mRetriever.getNextIndex(index);
 					}
 				}
-				if (song == null) {
-					Toast.makeText(
-							this,
-							"No available music to play. Place some music on your external storage "
-									+ "device (e.g. your SD card) and try again.",
-							Toast.LENGTH_LONG).show();
-					processStopRequest(true); // stop everything!
-					return;
+			} else if (mode == PreferencesUtils.Mode.Loop) {
+				if (this.song == null) {
+					index = mRetriever.getFirstIndex();
+				} else {
+					song = this.song;
+					index = mSongIndex;
 				}
 			}
+			if (song == null && index != -1) {
+				song = mRetriever.getSong(index);
+			}
+			if (song == null) {
+				Toast.makeText(
+						this,
+						"No available music to play. Place some music on your external storage "
+								+ "device (e.g. your SD card) and try again.",
+						Toast.LENGTH_LONG).show();
+				processStopRequest(true); // stop everything!
+				return;
+			}
+		} else {
+			index = mRetriever.indexOf(song);
+			if (index != -1) {
+				// a song from the UI comes without its seek table
+				song = mRetriever.getSong(index);
+			}
+			if (mode == PreferencesUtils.Mode.Random) {
+				// a picked song counts as played in the shuffle
+				mRetriever.setShuffleCurrent(index);
+			}
+		}
+		playSong(song, index);
+	}
+
+	/** Starts playing the given song, which is at the given position. */
+	private void playSong(Song song, int index) {
+		checkpoint();
+		stopCheckpoints();
+		releaseNext();
+		mState = State.Stopped;
+		processUpdateStateRequest();
+		relaxResources(false); // release everything except MediaPlayer
+
+		try {
 			this.song = song;
+			mSongIndex = index;
 			// set the source of the media player a a content URI
 			createMediaPlayerIfNeeded();
 			mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
 			mPlayer.setDataSource(song.getPath());
 
 			mState = State.Preparing;
-			setUpAsForeground(song.getName() + " (loading)");
+			setUpAsForeground(song.getDisplayName() + " (loading)");
 
 			// starts preparing the media player in the background. When it's
 			// done,
@@ -557,25 +936,233 @@ public class MusicService extends Service implements OnCompletionListener,
 	/** Called when media player is done playing current song. */
 	@Override
 	public void onCompletion(MediaPlayer player) {
+		if (player != mPlayer) {
+			return;
+		}
 		// The media player finished playing the current song, so we go ahead
 		// and start the next.
-		playNextSong(null);
+		if (mRetrieving) {
+			// the song resumed from the last run ended before the list was
+			// there; go on from it once it is
+			mState = State.Retrieving;
+			processUpdateStateRequest();
+			relaxResources(false);
+			mWhatToPlayAfterRetrieve = null;
+			mStartPlayingAfterRetrieve = true;
+			mCheckpointer.finished(song);
+			stopCheckpoints();
+			return;
+		}
+		mRetriever.recordPlayed(song);
+		mCheckpointer.finished(song);
+		if (!playPreparedNext()) {
+			playNextSong(null);
+		}
 	}
 
 	/** Called when media player is done preparing. */
 	@Override
 	public void onPrepared(MediaPlayer player) {
+		if (player == mNextPlayer) {
+			onNextPrepared();
+			return;
+		}
 		// The media player is done preparing. That means we can start playing!
 		mState = State.Playing;
 		processUpdateStateRequest();
 
-		updateNotification(song.getName() + " (playing)");
+		// long tracks go on where they were left, and so does the song of
+		// the last run
+		int duration = getDuration();
+		int start = mCheckpointer.getResumePosition(song, duration);
+		if (mResumePosition >= 0 && song.equals(mWhatToPlayAfterRetrieve)) {
+			int last = mCheckpointer.getLastPosition(song);
+			start = last >= 0 ? last : mResumePosition;
+		}
+		mResumePosition = -1;
+		if (start > 0 && start < duration) {
+			int time = start;
+			SeekTable seekTable = song.getSeekTable();
+			if (seekTable != null) {
+				time = seekTable.toPlayerTime(time, duration);
+			}
+			mPlayer.seekTo(time);
+		} else {
+			start = 0;
+		}
+		startedSong(start, duration);
+	}
+
+	/**
+	 * Starts the song in mPlayer, from start, and tells everyone about it.
+	 * Then prepares the song after it.
+	 */
+	private void startedSong(int start, int duration) {
+		// so that a killed process comes back to this song
+		PreferencesUtils.saveSong(this, song, start);
+
+		updateNotification(song.getDisplayName() + " (playing)");
 		configAndStartMediaPlayer();
+		startCheckpoints();
 
 		Intent intent = new Intent(MainActivity.ACTION_UPDATE_PLAYER);
 		intent.putExtra("song", song);
-		intent.putExtra("duration", mPlayer.getDuration());
+		intent.putExtra("index", mSongIndex);
+		intent.putExtra("duration", duration);
 		sendBroadcast(intent);
+		// seeking may take a while, so don't ask the player where it is
+		sendClock(start);
+		prepareNext();
+	}
+
+	/**
+	 * Prepares the song the mode plays after the current one on
+	 * mNextPlayer, dropping the one prepared before. Nothing is prepared
+	 * while the library loads or nothing is playing. Call it whenever what
+	 * comes next may have changed: the mode, the song list or the song.
+	 */
+	private void prepareNext() {
+		releaseNext();
+		if (mRetrieving || song == null
+				|| (mState != State.Playing && mState != State.Paused)) {
+			return;
+		}
+		Song next = getNextSong();
+		if (next == null) {
+			return;
+		}
+		mNextPlayer = newMediaPlayer();
+		mNextSong = next;
+		try {
+			mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+			mNextPlayer.setDataSource(next.getPath());
+			mNextPlayer.prepareAsync();
+		} catch (IOException ex) {
+			Log.e("MusicService",
+					"IOException preparing next song: " + ex.getMessage());
+			releaseNext();
+		}
+	}
+
+	/**
+	 * Returns the song {@link #playNextSong(Song)} would play next, without
+	 * moving on, or null if there is none. A shuffle only peeks at its next
+	 * song; playPreparedNext() takes it.
+	 */
+	private Song getNextSong() {
+		int index = -1;
+		PreferencesUtils.Mode mode = PreferencesUtils.getMode(this);
+		if (mode == PreferencesUtils.Mode.Random) {
+			index = mRetriever.peekShuffleNextIndex();
+		} else if (mode == PreferencesUtils.Mode.SmartRandom) {
+			// every pick is as random as the last, so this one will do
+			index = mRetriever.getSmartRandomIndex();
+		} else if (mode == PreferencesUtils.Mode.Order) {
+			index = mRetriever.getNextIndex(mSongIndex);
+		} else if (mode == PreferencesUtils.Mode.Loop) {
+			return song;
+		}
+		return index == -1 ? null : mRetriever.getSong(index);
+	}
+
+	private void onNextPrepared() {
+		mNextPrepared = true;
+		int duration = mNextSong.getDuration();
+		if (duration <= 0) {
+			duration = mNextPlayer.getDuration();
+		}
+		mNextStart = mCheckpointer.getResumePosition(mNextSong, duration);
+		if (mNextStart > 0 && mNextStart < duration) {
+			int time = mNextStart;
+			SeekTable seekTable = mNextSong.getSeekTable();
+			if (seekTable != null) {
+				time = seekTable.toPlayerTime(time, duration);
+			}
+			mNextPlayer.seekTo(time);
+		} else {
+			mNextStart = 0;
+		}
+		setNextVolume();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			mPlayer.setNextMediaPlayer(mNextPlayer);
+		}
+	}
+
+	/** Gives mNextPlayer the volume mPlayer has, for when it takes over. */
+	private void setNextVolume() {
+		float volume = PreferencesUtils.getVolume(this) * 0.01f;
+		if (mAudioFocus == AudioFocus.NoFocusCanDuck) {
+			volume = DUCK_VOLUME;
+		}
+		mNextPlayer.setVolume(volume, volume);
+	}
+
+	/**
+	 * Makes the prepared next song the current one, once mPlayer is done.
+	 * Returns false if there is none, or it is gone from the list meanwhile.
+	 */
+	private boolean playPreparedNext() {
+		if (!mNextPrepared) {
+			return false;
+		}
+		int index = mRetriever.indexOf(mNextSong);
+		if (index == -1 && mNextSong != song) {
+			return false;
+		}
+		if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Random) {
+			if (mRetriever.peekShuffleNextIndex() == index) {
+				mRetriever.getShuffleNextIndex();
+			} else {
+				// the shuffle changed since the peek; the song counts as
+				// played all the same
+				mRetriever.setShuffleCurrent(index);
+			}
+		}
+		MediaPlayer old = mPlayer;
+		mPlayer = mNextPlayer;
+		song = mNextSong;
+		mSongIndex = index;
+		mNextPlayer = null;
+		mNextSong = null;
+		mNextPrepared = false;
+		old.release();
+		startedSong(mNextStart, getDuration());
+		return true;
+	}
+
+	/** Drops the prepared next song, and mPlayer's hand-over to it. */
+	private void releaseNext() {
+		if (mNextPlayer == null) {
+			return;
+		}
+		if (mNextPrepared && mPlayer != null
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			mPlayer.setNextMediaPlayer(null);
+		}
+		mNextPlayer.release();
+		mNextPlayer = null;
+		mNextSong = null;
+		mNextPrepared = false;
+	}
+
+	/**
+	 * Records where playback of the song is, which costs no I/O if it didn't
+	 * move since the last time.
+	 */
+	private void checkpoint() {
+		if (song != null && mPlayer != null
+				&& (mState == State.Playing || mState == State.Paused)) {
+			mCheckpointer.checkpoint(song, getCurrentPosition(), getDuration());
+		}
+	}
+
+	private void startCheckpoints() {
+		mHandler.removeCallbacks(mCheckpointTick);
+		mHandler.postDelayed(mCheckpointTick, CHECKPOINT_INTERVAL);
+	}
+
+	private void stopCheckpoints() {
+		mHandler.removeCallbacks(mCheckpointTick);
 	}
 
 	/** Updates the notification. */
@@ -613,6 +1200,13 @@ public class MusicService extends Service implements OnCompletionListener,
 	 * reset the media player.
 	 */
 	public boolean onError(MediaPlayer mp, int what, int extra) {
+		if (mp == mNextPlayer) {
+			// the next song gets prepared again when it's its turn
+			Log.e(TAG, "Error preparing next: what=" + what + ", extra="
+					+ extra);
+			releaseNext();
+			return true;
+		}
 		Toast.makeText(getApplicationContext(),
 				"Media player error! Resetting.", Toast.LENGTH_SHORT).show();
 		Log.e(TAG,
@@ -621,9 +1215,11 @@ public class MusicService extends Service implements OnCompletionListener,
 
 		mState = State.Stopped;
 		processUpdateStateRequest();
+		stopCheckpoints();
 
 		relaxResources(true);
 		giveUpAudioFocus();
+		processGetProgressRequest();
 
 		return true; // true indicates we handled the error
 	}
@@ -637,6 +1233,7 @@ public class MusicService extends Service implements OnCompletionListener,
 		// restart media player with new focus settings
 		if (mState == State.Playing) {
 			configAndStartMediaPlayer();
+			processGetProgressRequest();
 		}
 	}
 
@@ -651,18 +1248,41 @@ public class MusicService extends Service implements OnCompletionListener,
 		// start/restart/pause media player with new focus settings
 		if (mPlayer != null && mPlayer.isPlaying()) {
 			configAndStartMediaPlayer();
+			processGetProgressRequest();
 		}
 	}
 
 	@Override
 	public void onMusicRetrieverPrepared() {
 		// Done retrieving!
-		mState = State.Stopped;
-		processUpdateStateRequest();
-
-		Intent intent = new Intent(MainActivity.ACTION_UPDATE_SONG_LIST);
-		intent.putExtra("song_array", mRetriever.getSongArray());
-		sendBroadcast(intent);
+		mRetrieving = false;
+		if (mState == State.Retrieving) {
+			mState = State.Stopped;
+			processUpdateStateRequest();
+		}
+		// a song resumed meanwhile gets its place in the list, and what the
+		// list knows about it
+		mSongIndex = mRetriever.indexOf(song);
+		if (mSongIndex != -1 && mState != State.Stopped) {
+			song = mRetriever.getSong(mSongIndex);
+			if (PreferencesUtils.getMode(this) == PreferencesUtils.Mode.Random) {
+				mRetriever.setShuffleCurrent(mSongIndex);
+			}
+		}
+		startWatching();
+		for (Song deleted : mPendingDeletes) {
+			if (deleted.equals(mWhatToPlayAfterRetrieve)) {
+				mWhatToPlayAfterRetrieve = null;
+			}
+			deleteSong(deleted);
+		}
+		mPendingDeletes.clear();
+		if (mPendingSkips > 0) {
+			int skips = mPendingSkips;
+			mPendingSkips = 0;
+			processSkipRequest(skips);
+		}
+		prepareNext();
 
 		// If the flag indicates we should start playing after retrieving, let's
 		// do that now.
@@ -673,15 +1293,104 @@ public class MusicService extends Service implements OnCompletionListener,
 		}
 	}
 
+	@Override
+	public void onMusicRetrieverBatch(int start, ArrayList<Song> batch,
+			int total) {
+		SongListLog log = mRetriever.getListLog();
+		Intent intent = new Intent(MainActivity.ACTION_UPDATE_SONG_LIST);
+		intent.putExtra("song_array", batch);
+		intent.putExtra("start", start);
+		intent.putExtra("total", total);
+		intent.putExtra("list_epoch", log.getEpoch());
+		intent.putExtra("list_version", log.getVersion());
+		sendBroadcast(intent);
+	}
+
 	@Override
 	public void onDestroy() {
 		// Service is being killed, so make sure we release our resources
+		checkpoint();
+		stopCheckpoints();
+		mCheckpointer.close();
+		mRetriever.close();
 		mState = State.Stopped;
 		processUpdateStateRequest();
 
 		relaxResources(true);
 		giveUpAudioFocus();
+		stopWatching();
+		mHandler.removeCallbacks(mDrain);
+		mCommands.clear();
+		PreferencesUtils.flush(this);
+
+	}
+
+	private void startWatching() {
+		stopWatching();
+		ArrayList<String> folders = mRetriever.getLibraryFolders();
+		if (folders != null) {
+			mWatcher = new LibraryWatcher(this);
+			mWatcher.watch(folders);
+		}
+	}
+
+	private void stopWatching() {
+		if (mWatcher != null) {
+			mWatcher.stop();
+			mWatcher = null;
+		}
+	}
+
+	@Override
+	public void onLibraryChanged(LibraryWatcher.Batch batch) {
+		// the UI needs the whole list before it can take changes, so wait
+		// for the streaming
+		if (mRetrieverTask.getStatus() != AsyncTask.Status.FINISHED
+				|| mApplyTask != null) {
+			mWatcher.requeue(batch);
+			return;
+		}
+		mApplyTask = new ApplyLibraryChangesTask(mWatcher, batch);
+		mApplyTask.execute();
+	}
 
+	/**
+	 * Applies a batch of library changes. The scanning and tagging happen off
+	 * the main thread, the changes to the list on it, like every other change
+	 * to the list, so positions held here never go stale under our feet.
+	 */
+	private class ApplyLibraryChangesTask extends
+			AsyncTask<Void, Void, MusicRetriever.LibraryChanges> {
+		private final LibraryWatcher watcher;
+		private final LibraryWatcher.Batch batch;
+
+		ApplyLibraryChangesTask(LibraryWatcher watcher,
+				LibraryWatcher.Batch batch) {
+			this.watcher = watcher;
+			this.batch = batch;
+		}
+
+		@Override
+		protected MusicRetriever.LibraryChanges doInBackground(
+				Void... params) {
+			return mRetriever.prepareChanges(batch);
+		}
+
+		@Override
+		protected void onPostExecute(MusicRetriever.LibraryChanges changes) {
+			mApplyTask = null;
+			if (watcher != mWatcher) {
+				// another folder was loaded meanwhile
+				return;
+			}
+			int version = mRetriever.getListLog().getVersion();
+			mRetriever.applyChanges(changes);
+			watcher.unwatch(batch.removedFolders);
+			watcher.watch(changes.getScanned());
+			mSongIndex = mRetriever.indexOf(song);
+			sendSongListChanges(version);
+			prepareNext();
+		}
 	}
 
 	@Override
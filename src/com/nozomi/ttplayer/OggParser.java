@@ -0,0 +1,145 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+
+/**
+ * Reads an Ogg Vorbis (or Opus) file: the sample rate from the
+ * identification header, the tags from the comment header and the duration
+ * from the granule position of the last page, so only the first pages and
+ * the tail of the file are read. Comment headers are read up to
+ * {@link #MAX_COMMENTS} bytes; what is beyond is usually cover art.
+ */
+public class OggParser {
+
+	private static final int MAX_COMMENTS = 64 * 1024;
+	private static final int PAGE_HEADER_SIZE = 27;
+	// how many windows back from the end the last page is looked for
+	private static final int MAX_TAIL_WINDOWS = 8;
+
+	private final ChannelWindow window;
+	private final byte[] packet = new byte[MAX_COMMENTS];
+	private final int[] lacing = new int[255];
+
+	private int sampleRate;
+	private long preSkip;
+
+	public OggParser(ChannelWindow window) {
+		this.window = window;
+	}
+
+	/** Parses the file the window was reset to. */
+	public void parse(Song song) throws IOException {
+		sampleRate = 0;
+		preSkip = 0;
+		if (!window.fill(0, PAGE_HEADER_SIZE)) {
+			return;
+		}
+		int serial = window.getIntLE(14);
+
+		// the first two packets, the comments cut off at MAX_COMMENTS
+		long position = 0;
+		int packets = 0;
+		int length = 0;
+		while (packets < 2 && window.fill(position, PAGE_HEADER_SIZE)
+				&& window.matches(position, "OggS")) {
+			int segments = window.get(position + 26);
+			if (!window.fill(position + PAGE_HEADER_SIZE, segments)) {
+				return;
+			}
+			for (int i = 0; i < segments; i++) {
+				lacing[i] = window.get(position + PAGE_HEADER_SIZE + i);
+			}
+			long segment = position + PAGE_HEADER_SIZE + segments;
+			for (int i = 0; i < segments && packets < 2; i++) {
+				int copy = Math.min(lacing[i], packet.length - length);
+				if (copy > 0) {
+					if (!window.fill(segment, copy)) {
+						return;
+					}
+					System.arraycopy(window.array(), window.at(segment),
+							packet, length, copy);
+					length += copy;
+				}
+				segment += lacing[i];
+				if (lacing[i] < 255 || length == packet.length) {
+					if (!header(packets, length, song)) {
+						return;
+					}
+					packets++;
+					length = 0;
+				}
+			}
+			position = segment;
+		}
+
+		if (sampleRate > 0) {
+			long granule = lastGranule(serial);
+			if (granule > preSkip) {
+				song.setDuration((int) ((granule - preSkip) * 1000
+						/ sampleRate));
+			}
+		}
+	}
+
+	/** Handles a header packet. Returns false if it isn't one we know. */
+	private boolean header(int index, int length, Song song) {
+		if (index == 0) {
+			if (length >= 16 && startsWith("\u0001vorbis")) {
+				sampleRate = VorbisComments.getIntLE(packet, 12);
+				return true;
+			}
+			if (length >= 19 && startsWith("OpusHead")) {
+				// Opus always decodes at 48kHz
+				sampleRate = 48000;
+				preSkip = (packet[10] & 0xff) | (packet[11] & 0xff) << 8;
+				return true;
+			}
+			return false;
+		}
+		if (startsWith("\u0003vorbis")) {
+			VorbisComments.parse(packet, 7, length, song);
+		} else if (startsWith("OpusTags")) {
+			VorbisComments.parse(packet, 8, length, song);
+		}
+		return true;
+	}
+
+	private boolean startsWith(String magic) {
+		for (int i = 0; i < magic.length(); i++) {
+			if (packet[i] != magic.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the granule position of the last page of the stream, looking
+	 * back from the end of the file one window at a time, or -1.
+	 */
+	private long lastGranule(int serial) throws IOException {
+		long end = window.size();
+		for (int i = 0; i < MAX_TAIL_WINDOWS && end > 0; i++) {
+			long start = Math.max(0, end - window.capacity());
+			if (!window.fill(start, (int) (end - start))) {
+				return -1;
+			}
+			for (long position = end - PAGE_HEADER_SIZE; position >= start;
+					position--) {
+				if (window.matches(position, "OggS")
+						&& window.getIntLE(position + 14) == serial) {
+					long granule = window.getLongLE(position + 6);
+					if (granule != -1) {
+						return granule;
+					}
+				}
+			}
+			// pages may straddle windows, so overlap them by a header
+			end = start + PAGE_HEADER_SIZE - 1;
+			if (start == 0) {
+				break;
+			}
+		}
+		return -1;
+	}
+}
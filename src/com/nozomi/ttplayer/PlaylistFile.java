@@ -0,0 +1,258 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Binary playlist, read through a memory mapping so that opening it costs the
+ * same for ten songs as for a hundred thousand. The layout is
+ *
+ * <pre>
+ * header   magic, version, count, sort key version
+ * table    count * (song id, offset of the record)
+ * records  count * (path length, UTF-8 path, name length, UTF-8 name,
+ *                   sort key length, sort key)
+ * </pre>
+ *
+ * Sort keys saved under another {@link Song#SORT_KEY_VERSION} are skipped;
+ * their songs compute them when first compared.
+ *
+ * Songs are only decoded when {@link #read(int)} is called for them. Since
+ * the records are stored in order, a {@link Reader} can also decode the whole
+ * playlist front to back from a plain channel.
+ */
+public class PlaylistFile {
+
+	private static final int MAGIC = 0x7474504c; // "ttPL"
+	private static final int VERSION = 4;
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 12;
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final boolean useSortKeys;
+
+	private PlaylistFile(ByteBuffer buffer, int count, int sortKeyVersion) {
+		this.buffer = buffer;
+		this.count = count;
+		useSortKeys = sortKeyVersion == Song.SORT_KEY_VERSION;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/** Decodes the song at the given position. Safe to call from any thread. */
+	public Song read(int index) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(record.getInt(HEADER_SIZE + index * ENTRY_SIZE + 8));
+		Song song = new Song(decode(record), decode(record));
+		if (useSortKeys) {
+			song.setSortKey(readBytes(record));
+		}
+		return song;
+	}
+
+	/**
+	 * Returns the {@link Song#getId() id} of the song at the given position.
+	 * Unlike {@link #read(int)}, this doesn't decode the song.
+	 */
+	public long readId(int index) {
+		return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE);
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static String decode(ByteBuffer buffer) {
+		byte[] bytes = readBytes(buffer);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Maps the playlist at the given path. Returns null if the file doesn't
+	 * exist or isn't a playlist of this version.
+	 */
+	public static PlaylistFile open(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+				return null;
+			}
+			if (buffer.getInt(4) != VERSION) {
+				return null;
+			}
+			int count = buffer.getInt(8);
+			if (HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.limit()) {
+				return null;
+			}
+			return new PlaylistFile(buffer, count, buffer.getInt(12));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the songs as a playlist. The file is written next to its final
+	 * place first and renamed over it, so a crash never leaves half a
+	 * playlist behind.
+	 */
+	public static void write(File file, List<Song> songs) throws IOException {
+		int count = songs.size();
+		byte[][] paths = new byte[count][];
+		byte[][] names = new byte[count][];
+		byte[][] sortKeys = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			Song song = songs.get(i);
+			paths[i] = song.getPath().getBytes("UTF-8");
+			names[i] = song.getName().getBytes("UTF-8");
+			sortKeys[i] = song.getSortKey();
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			out.writeInt(Song.SORT_KEY_VERSION);
+
+			int offset = HEADER_SIZE + count * ENTRY_SIZE;
+			for (int i = 0; i < count; i++) {
+				out.writeLong(songs.get(i).getId());
+				out.writeInt(offset);
+				offset += 6 + paths[i].length + names[i].length
+						+ sortKeys[i].length;
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeShort(paths[i].length);
+				out.write(paths[i]);
+				out.writeShort(names[i].length);
+				out.write(names[i]);
+				out.writeShort(sortKeys[i].length);
+				out.write(sortKeys[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("can't rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * Decodes a playlist front to back from a channel, one song at a time,
+	 * without needing the whole file in memory or mapped.
+	 */
+	public static class Reader {
+		private final ReadableByteChannel channel;
+		// large enough for the longest record field
+		private final ByteBuffer buffer = ByteBuffer.allocate(128 * 1024);
+		private final int count;
+		private final boolean useSortKeys;
+		private int remaining;
+
+		public Reader(ReadableByteChannel channel) throws IOException {
+			this.channel = channel;
+			buffer.flip();
+			require(HEADER_SIZE);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("not a playlist");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("unknown playlist version " + version);
+			}
+			count = buffer.getInt();
+			useSortKeys = buffer.getInt() == Song.SORT_KEY_VERSION;
+			remaining = count;
+
+			long skip = (long) count * ENTRY_SIZE;
+			while (skip > 0) {
+				require(1);
+				int step = (int) Math.min(skip, buffer.remaining());
+				buffer.position(buffer.position() + step);
+				skip -= step;
+			}
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/** Returns the next song, or null once all songs have been read. */
+		public Song next() throws IOException {
+			if (remaining == 0) {
+				return null;
+			}
+			String path = readString();
+			String name = readString();
+			Song song = new Song(path, name);
+			require(2);
+			byte[] sortKey = new byte[buffer.getShort() & 0xffff];
+			require(sortKey.length);
+			buffer.get(sortKey);
+			if (useSortKeys) {
+				song.setSortKey(sortKey);
+			}
+			remaining--;
+			return song;
+		}
+
+		private String readString() throws IOException {
+			require(2);
+			int length = buffer.getShort() & 0xffff;
+			require(length);
+			String string = new String(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), length, "UTF-8");
+			buffer.position(buffer.position() + length);
+			return string;
+		}
+
+		private void require(int length) throws IOException {
+			if (buffer.remaining() >= length) {
+				return;
+			}
+			buffer.compact();
+			while (buffer.position() < length) {
+				if (channel.read(buffer) == -1) {
+					throw new EOFException();
+				}
+			}
+			buffer.flip();
+		}
+	}
+}
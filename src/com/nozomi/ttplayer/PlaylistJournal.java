@@ -0,0 +1,322 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Write-ahead journal of changes to the playlist. Instead of rewriting
+ * playlist.bin for every change, each change is appended here as a small
+ * record, and the playlist is only rewritten when the journal is compacted.
+ * Loading the playlist means reading playlist.bin and replaying the journal on
+ * top of it.
+ *
+ * Records are written by a single background thread. Everything appended
+ * while a write is in progress goes out with the next write, followed by one
+ * fsync. A record cut short by a crash is ignored on replay.
+ *
+ * Replaying a record twice has no effect, which is what makes compaction
+ * safe: the journal is moved aside, the playlist is written to a temp file
+ * and renamed into place, and only then is the moved journal deleted. A crash
+ * at any point leaves a playlist and journals that replay to the same list.
+ */
+public class PlaylistJournal {
+	final String TAG = "PlaylistJournal";
+
+	public static final byte ADD = 1;
+	public static final byte DELETE = 2;
+
+	/** Number of records after which the playlist should be rewritten. */
+	public static final int COMPACT_THRESHOLD = 512;
+	// how long closing waits for the last write
+	private static final long CLOSE_TIMEOUT = 500;
+
+	private final File file;
+	private final File oldFile;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+	// records not written yet, guarded by this
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private boolean flushScheduled = false;
+	private int recordCount = 0;
+	// bumped by every compaction, so that a flush queued before it doesn't
+	// write records that belong after it
+	private int epoch = 0;
+	private boolean closed = false;
+
+	public PlaylistJournal(File folder) {
+		file = new File(folder, "playlist.journal");
+		oldFile = new File(folder, "playlist.journal.old");
+	}
+
+	public interface Replayer {
+		public void onAdd(String path);
+
+		public void onDelete(String path);
+	}
+
+	/**
+	 * Replays all journaled changes in order, and returns how many there were.
+	 */
+	public synchronized int replay(Replayer replayer) {
+		recordCount = replay(oldFile, replayer) + replay(file, replayer);
+		return recordCount;
+	}
+
+	private int replay(File journal, Replayer replayer) {
+		if (!journal.exists()) {
+			return 0;
+		}
+		int count = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(journal), 16 * 1024));
+			while (true) {
+				byte type = in.readByte();
+				byte[] bytes = new byte[in.readUnsignedShort()];
+				in.readFully(bytes);
+				String path = new String(bytes, "UTF-8");
+				if (type == ADD) {
+					replayer.onAdd(path);
+				} else if (type == DELETE) {
+					replayer.onDelete(path);
+				}
+				count++;
+			}
+		} catch (EOFException e) {
+			// end of the journal, or a record cut short by a crash
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Appends a record. Returns right away; the write happens in background. */
+	public synchronized void append(byte type, String path) {
+		try {
+			byte[] bytes = path.getBytes("UTF-8");
+			pending.write(type);
+			pending.write(bytes.length >> 8);
+			pending.write(bytes.length);
+			pending.write(bytes, 0, bytes.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		recordCount++;
+		if (closed) {
+			// a load still running when the service went
+			Log.e(TAG, "closed, not writing " + path);
+			return;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			final int flushEpoch = epoch;
+			writer.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] data;
+					synchronized (PlaylistJournal.this) {
+						if (flushEpoch != epoch) {
+							return;
+						}
+						data = pending.toByteArray();
+						pending.reset();
+						flushScheduled = false;
+					}
+					write(data);
+				}
+			});
+		}
+	}
+
+	public synchronized boolean needsCompaction() {
+		return recordCount >= COMPACT_THRESHOLD;
+	}
+
+	/** Appends the records to the journal file and syncs it. */
+	private void write(byte[] data) {
+		if (data.length == 0) {
+			return;
+		}
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(file, true);
+			fos.write(data);
+			fos.getFD().sync();
+		} catch (IOException e) {
+			Log.e(TAG, "can't write journal: " + e.getMessage());
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the playlist from the given songs and drops the journal. The
+	 * songs must reflect every record appended so far; pass a copy the caller
+	 * won't change. Records appended after this call go to a fresh journal.
+	 * The work happens in background; the returned future is done when the
+	 * playlist is in place. Returns null once the journal is closed.
+	 */
+	public Future<?> compact(final SongList songs, final File playlistFile) {
+		final byte[] data;
+		synchronized (this) {
+			if (closed) {
+				// the journal still replays to the list
+				Log.e(TAG, "closed, not compacting");
+				return null;
+			}
+			data = pending.toByteArray();
+			pending.reset();
+			flushScheduled = false;
+			recordCount = 0;
+			epoch++;
+		}
+		return writer.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				write(data);
+				if (!rotate()) {
+					return;
+				}
+				try {
+					PlaylistFile.write(playlistFile, songs);
+					oldFile.delete();
+					Log.e(TAG, "compacted, total " + songs.size());
+				} catch (IOException e) {
+					// the moved journal still holds the changes
+					Log.e(TAG, "can't compact: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/** Like {@link #compact(SongList, File)}, but waits until it's done. */
+	public void compactNow(SongList songs, File playlistFile) {
+		Future<?> future = compact(songs, playlistFile);
+		if (future == null) {
+			return;
+		}
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Moves the journal aside, onto what a crashed compaction left behind. */
+	private boolean rotate() {
+		if (!file.exists()) {
+			return true;
+		}
+		if (!oldFile.exists()) {
+			return file.renameTo(oldFile);
+		}
+		FileInputStream fis = null;
+		FileOutputStream fos = null;
+		try {
+			fis = new FileInputStream(file);
+			fos = new FileOutputStream(oldFile, true);
+			byte[] buffer = new byte[16 * 1024];
+			int length;
+			while ((length = fis.read(buffer)) != -1) {
+				fos.write(buffer, 0, length);
+			}
+			fos.getFD().sync();
+		} catch (IOException e) {
+			Log.e(TAG, "can't rotate journal: " + e.getMessage());
+			return false;
+		} finally {
+			try {
+				if (fis != null) {
+					fis.close();
+				}
+				if (fos != null) {
+					fos.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+		return file.delete();
+	}
+
+	/** Waits until everything submitted so far has been written. */
+	public void await() {
+		try {
+			writer.submit(new Runnable() {
+
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (RejectedExecutionException e) {
+			// closed, everything was written then
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the records not written yet and stops the thread, waiting a
+	 * little for that. Records appended afterwards are dropped.
+	 */
+	public void close() {
+		final byte[] data;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			data = pending.toByteArray();
+			pending.reset();
+			flushScheduled = false;
+			// a flush still queued has nothing left to write
+			epoch++;
+		}
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				write(data);
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Remembers where playback is, so it can go on from there. Every checkpoint
+ * goes to a {@link PositionRing}, which costs no I/O, so the last song
+ * resumes where it was even if the process was killed. Long tracks, like
+ * mixes and audiobooks, also get a resume point of their own, kept for the
+ * {@link #MAX_POINTS} used last in resume.dat, which is written in
+ * background.
+ *
+ * The ring and the resume points are loaded in background; until then
+ * there is nothing to resume and checkpoints only go to the resume points.
+ */
+public class PositionCheckpointer {
+	final String TAG = "PositionCheckpointer";
+
+	private static final int MAGIC = 0x74745250; // "ttRP"
+	private static final int VERSION = 1;
+	/** Tracks this long get a resume point of their own. */
+	public static final int LONG_TRACK = 10 * 60 * 1000;
+	private static final int MAX_POINTS = 256;
+	// a point this close to the end counts as played to it
+	private static final int END_MARGIN = 10 * 1000;
+	private static final long SAVE_DELAY = 5000;
+
+	private final File ringFile;
+	private final File pointsFile;
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor();
+	private volatile PositionRing ring = null;
+
+	// guarded by this; song id to position, least recently used first
+	private final LinkedHashMap<Long, Integer> points = new LinkedHashMap<Long, Integer>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+			return size() > MAX_POINTS;
+		}
+	};
+	private boolean saveScheduled = false;
+
+	private final Runnable save = new Runnable() {
+
+		@Override
+		public void run() {
+			save();
+		}
+	};
+
+	public PositionCheckpointer(File folder) {
+		ringFile = new File(folder, "position.ring");
+		pointsFile = new File(folder, "resume.dat");
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				ring = PositionRing.open(ringFile);
+				load();
+			}
+		});
+	}
+
+	/**
+	 * Records the position of the song, a cheap store to memory if it didn't
+	 * move since the last time.
+	 */
+	public void checkpoint(Song song, int position, int duration) {
+		PositionRing ring = this.ring;
+		if (ring != null) {
+			ring.write(song.getId(), position);
+		}
+		if (duration >= LONG_TRACK) {
+			synchronized (this) {
+				Integer old = points.get(song.getId());
+				if (old == null || old != position) {
+					if (position > 0 && position < duration - END_MARGIN) {
+						points.put(song.getId(), position);
+					} else {
+						points.remove(song.getId());
+					}
+					scheduleSave();
+				}
+			}
+		}
+	}
+
+	/** The song was played to the end; it starts over next time. */
+	public void finished(Song song) {
+		synchronized (this) {
+			if (points.remove(song.getId()) != null) {
+				scheduleSave();
+			}
+		}
+		PositionRing ring = this.ring;
+		if (ring != null) {
+			ring.write(song.getId(), 0);
+		}
+	}
+
+	/**
+	 * Returns the newest position checkpointed for the song, whatever its
+	 * length, or -1 if there is none or the ring isn't loaded yet. For
+	 * resuming the song playing when the process went.
+	 */
+	public int getLastPosition(Song song) {
+		PositionRing ring = this.ring;
+		return ring == null ? -1 : ring.read(song.getId());
+	}
+
+	/**
+	 * Returns where to start the song, its resume point if it is a long
+	 * track with one, or 0.
+	 */
+	public synchronized int getResumePosition(Song song, int duration) {
+		if (duration < LONG_TRACK) {
+			return 0;
+		}
+		Integer position = points.get(song.getId());
+		return position == null ? 0 : position;
+	}
+
+	/** Saves what is left to save and stops the thread. */
+	public void close() {
+		executor.execute(save);
+		executor.shutdown();
+	}
+
+	private void scheduleSave() {
+		if (!saveScheduled) {
+			saveScheduled = true;
+			executor.schedule(save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void load() {
+		if (!pointsFile.exists()) {
+			return;
+		}
+		LinkedHashMap<Long, Integer> loaded = new LinkedHashMap<Long, Integer>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(pointsFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long id = in.readLong();
+				loaded.put(id, in.readInt());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		synchronized (this) {
+			// checkpoints taken meanwhile are newer, and used more recently
+			LinkedHashMap<Long, Integer> newer = new LinkedHashMap<Long, Integer>(
+					points);
+			points.clear();
+			points.putAll(loaded);
+			points.putAll(newer);
+		}
+	}
+
+	/** Writes the points, least recently used first, and renames them over. */
+	private void save() {
+		long[] ids;
+		int[] positions;
+		synchronized (this) {
+			saveScheduled = false;
+			ids = new long[points.size()];
+			positions = new int[points.size()];
+			int i = 0;
+			for (Map.Entry<Long, Integer> entry : points.entrySet()) {
+				ids[i] = entry.getKey();
+				positions[i] = entry.getValue();
+				i++;
+			}
+		}
+		File tmp = new File(pointsFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ids.length);
+			for (int i = 0; i < ids.length; i++) {
+				out.writeLong(ids[i]);
+				out.writeInt(positions[i]);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(pointsFile)) {
+				Log.e(TAG, "can't rename " + tmp + " to " + pointsFile);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.nozomi.ttplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A small memory-mapped file holding the last few playback positions, one
+ * slot after the other. Writing a position only stores to memory; the kernel
+ * writes the page back on its own, also when the process is killed, so it
+ * can be done often and from any thread without waiting for the disk.
+ *
+ * Every slot has a sequence number and a check over its fields, so the
+ * newest slot written whole wins and a slot torn by a crash is passed over.
+ */
+public class PositionRing {
+
+	private static final int MAGIC = 0x74745052; // "ttPR"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int SLOTS = 8;
+	// sequence, song id, position, check
+	private static final int SLOT_SIZE = 24;
+	private static final int SIZE = HEADER_SIZE + SLOTS * SLOT_SIZE;
+
+	private final MappedByteBuffer buffer;
+	private long sequence = 0;
+	private int next = 0;
+	// what the newest slot says, to skip writing it again
+	private long lastId = 0;
+	private int lastPosition = -1;
+
+	private PositionRing(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		int newest = newestSlot(0, false);
+		if (newest != -1) {
+			int offset = offsetOf(newest);
+			sequence = buffer.getLong(offset);
+			lastId = buffer.getLong(offset + 8);
+			lastPosition = buffer.getInt(offset + 16);
+			next = (newest + 1) % SLOTS;
+		}
+	}
+
+	/**
+	 * Maps the ring at the given path, making a new one if there is none or
+	 * it isn't of this version. Returns null if it can't be mapped. Does I/O,
+	 * so keep it off the main thread.
+	 */
+	public static PositionRing open(File file) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			boolean fresh = raf.length() != SIZE;
+			if (fresh) {
+				raf.setLength(SIZE);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, SIZE);
+			if (fresh || buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != VERSION) {
+				for (int i = 0; i < SIZE; i++) {
+					buffer.put(i, (byte) 0);
+				}
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+			}
+			// page it in now, so writes later don't fault on the disk
+			buffer.load();
+			return new PositionRing(buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			// the mapping stays valid without the file
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records the position of the song, unless the newest slot says that
+	 * already.
+	 */
+	public synchronized void write(long id, int position) {
+		if (id == lastId && position == lastPosition) {
+			return;
+		}
+		int offset = offsetOf(next);
+		sequence++;
+		// the check goes last, so a slot cut short doesn't pass for whole
+		buffer.putLong(offset, sequence);
+		buffer.putLong(offset + 8, id);
+		buffer.putInt(offset + 16, position);
+		buffer.putInt(offset + 20, check(sequence, id, position));
+		next = (next + 1) % SLOTS;
+		lastId = id;
+		lastPosition = position;
+	}
+
+	/** Returns the newest position recorded for the song, or -1. */
+	public synchronized int read(long id) {
+		int slot = newestSlot(id, true);
+		return slot == -1 ? -1 : buffer.getInt(offsetOf(slot) + 16);
+	}
+
+	/** Returns the newest whole slot, of the song only if byId, or -1. */
+	private int newestSlot(long id, boolean byId) {
+		int newest = -1;
+		long newestSequence = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			int offset = offsetOf(i);
+			long slotSequence = buffer.getLong(offset);
+			long slotId = buffer.getLong(offset + 8);
+			int position = buffer.getInt(offset + 16);
+			if (slotSequence <= newestSequence
+					|| (byId && slotId != id)
+					|| buffer.getInt(offset + 20) != check(slotSequence,
+							slotId, position)) {
+				continue;
+			}
+			newest = i;
+			newestSequence = slotSequence;
+		}
+		return newest;
+	}
+
+	private static int offsetOf(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static int check(long sequence, long id, int position) {
+		long hash = (sequence * 31 + id) * 31 + position;
+		// never 0, which is what a slot never written holds
+		return (int) (hash ^ (hash >>> 32)) | 1;
+	}
+}
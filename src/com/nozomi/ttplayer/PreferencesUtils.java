@@ -2,82 +2,53 @@ package com.nozomi.ttplayer;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 
+/**
+ * The settings, kept by {@link SettingsStore}: reading them only reads memory
+ * and changing them writes them in background.
+ */
 public class PreferencesUtils {
 
 	public enum Mode {
-		Random, Order, Loop
+		Random, Order, Loop, SmartRandom
 	}
 
-	private static final String SP_MODE = "mode";
-	private static final String SP_VOLUME = "volume";
-	private static final String SP_SONG = "song";
-
-	private static Mode mode = null;
-	private static int volume = -1;
-
 	public static Mode getMode(Context context) {
-		if (mode == null) {
-			SharedPreferences sp = context.getSharedPreferences("ttplayer",
-					Context.MODE_PRIVATE);
-			mode = Mode.values()[sp.getInt(SP_MODE, Mode.Random.ordinal())];
-		}
-		return mode;
+		return Mode.values()[SettingsStore.get(context).getMode()];
 	}
 
 	public static void setMode(Context context, Mode mode) {
-		PreferencesUtils.mode = mode;
-
-		SharedPreferences sp = context.getSharedPreferences("ttplayer",
-				Context.MODE_PRIVATE);
-		Editor editor = sp.edit();
-		editor.putInt(SP_MODE, mode.ordinal());
-		editor.commit();
-
+		SettingsStore.get(context).setMode(mode.ordinal());
+		// the song prepared to play next may not be the one of this mode
+		Intent intent = new Intent(MusicService.ACTION_SET_MODE);
+		context.startService(intent);
 	}
 
 	public static int getVolume(Context context) {
-		if (volume == -1) {
-			SharedPreferences sp = context.getSharedPreferences("ttplayer",
-					Context.MODE_PRIVATE);
-			volume = sp.getInt(SP_VOLUME, 100);
-		}
-		return volume;
+		return SettingsStore.get(context).getVolume();
 	}
 
 	public static void setVolume(Context context, int volume, boolean isSave) {
-		PreferencesUtils.volume = volume;
+		SettingsStore.get(context).setVolume(volume, isSave);
 		Intent intent = new Intent(MusicService.ACTION_SET_VOLUME);
 		context.startService(intent);
-
-		if (isSave) {
-			SharedPreferences sp = context.getSharedPreferences("ttplayer",
-					Context.MODE_PRIVATE);
-			Editor editor = sp.edit();
-			editor.putInt(SP_VOLUME, volume);
-			editor.commit();
-		}
 	}
 
 	public static void saveSong(Context context, Song song) {
-		SharedPreferences sp = context.getSharedPreferences("ttplayer",
-				Context.MODE_PRIVATE);
-		Editor editor = sp.edit();
-		if(song==null){
-			editor.putString(SP_SONG, "");
-		}else{
-		editor.putString(SP_SONG, song.getPath());
-		}
-		editor.commit();
+		saveSong(context, song, 0);
+	}
 
+	/** Remembers the song, and where in it playback was, to resume it. */
+	public static void saveSong(Context context, Song song, int position) {
+		if (song == null) {
+			SettingsStore.get(context).setSong("", 0);
+		} else {
+			SettingsStore.get(context).setSong(song.getPath(), position);
+		}
 	}
 
 	public static Song loadSong(Context context) {
-		SharedPreferences sp = context.getSharedPreferences("ttplayer",
-				Context.MODE_PRIVATE);
-		String path = sp.getString(SP_SONG, "");
+		String path = SettingsStore.get(context).getSongPath();
 		if (!path.equals("")) {
 			return new Song(path);
 		} else {
@@ -86,4 +57,14 @@ public class PreferencesUtils {
 
 	}
 
+	/** Returns where playback of the song from {@link #loadSong} was. */
+	public static int loadPosition(Context context) {
+		return SettingsStore.get(context).getPosition();
+	}
+
+	/** Makes sure the settings are on disk, before the process may go. */
+	public static void flush(Context context) {
+		SettingsStore.get(context).flush();
+	}
+
 }
@@ -16,6 +16,8 @@
 
 package com.nozomi.ttplayer;
 
+import java.util.ArrayList;
+
 import android.os.AsyncTask;
 
 /**
@@ -24,12 +26,20 @@ import android.os.AsyncTask;
  * {@link MusicRetriever}, which may take some time to run. Upon finishing, it
  * notifies the indicated {@MusicRetrieverPreparedListener
  * 
- * }.
+ * }. After that, the playlist keeps arriving in batches until all of it has
+ * been delivered.
  */
-public class PrepareMusicRetrieverTask extends AsyncTask<Void, Void, Void> {
+public class PrepareMusicRetrieverTask extends
+		AsyncTask<Void, PrepareMusicRetrieverTask.Batch, Void> implements
+		MusicRetriever.OnBatchLoadedListener {
 	private MusicRetriever mRetriever;
 	private MusicRetrieverPreparedListener mListener;
 	private String folderPath;
+	private int maxDepth = 0;
+	private boolean skipDuplicates = false;
+	private boolean prepared = false;
+	// cleared once the UI got the whole list some other way
+	private volatile boolean streaming = true;
 
 	public PrepareMusicRetrieverTask(MusicRetriever retriever,
 			MusicRetrieverPreparedListener listener) {
@@ -38,10 +48,13 @@ public class PrepareMusicRetrieverTask extends AsyncTask<Void, Void, Void> {
 	}
 
 	public PrepareMusicRetrieverTask(MusicRetriever retriever,
-			MusicRetrieverPreparedListener listener, String folderPath) {
+			MusicRetrieverPreparedListener listener, String folderPath,
+			int maxDepth, boolean skipDuplicates) {
 		mRetriever = retriever;
 		mListener = listener;
 		this.folderPath = folderPath;
+		this.maxDepth = maxDepth;
+		this.skipDuplicates = skipDuplicates;
 	}
 
 	@Override
@@ -49,17 +62,76 @@ public class PrepareMusicRetrieverTask extends AsyncTask<Void, Void, Void> {
 		if (folderPath == null) {
 			mRetriever.loadFromFile();
 		} else {
-			mRetriever.loadFromFolder(folderPath);
+			mRetriever.loadFromFolder(folderPath, maxDepth, skipDuplicates);
 		}
+		mRetriever.streamPlaylist(this);
 		return null;
 	}
 
+	/**
+	 * Stops handing out batches, which are stale once the UI was sent the
+	 * list as it is now. Unlike cancelling, the listener is still told when
+	 * the retriever is prepared.
+	 */
+	public void stopStreaming() {
+		streaming = false;
+	}
+
+	@Override
+	public boolean onBatchLoaded(int start, ArrayList<Song> batch, int total) {
+		if (isCancelled() || !streaming) {
+			return false;
+		}
+		publishProgress(new Batch(start, batch, total));
+		return true;
+	}
+
+	@Override
+	protected void onProgressUpdate(Batch... batches) {
+		if (isCancelled()) {
+			return;
+		}
+		for (Batch batch : batches) {
+			// the retriever is usable as soon as the first batch is out
+			if (!prepared) {
+				prepared = true;
+				mListener.onMusicRetrieverPrepared();
+			}
+			if (streaming) {
+				mListener.onMusicRetrieverBatch(batch.start, batch.songs,
+						batch.total);
+			}
+		}
+	}
+
 	@Override
 	protected void onPostExecute(Void result) {
-		mListener.onMusicRetrieverPrepared();
+		if (!prepared) {
+			prepared = true;
+			mListener.onMusicRetrieverPrepared();
+		}
+	}
+
+	static class Batch {
+		final int start;
+		final ArrayList<Song> songs;
+		final int total;
+
+		Batch(int start, ArrayList<Song> songs, int total) {
+			this.start = start;
+			this.songs = songs;
+			this.total = total;
+		}
 	}
 
 	public interface MusicRetrieverPreparedListener {
 		public void onMusicRetrieverPrepared();
+
+		/**
+		 * Called on the main thread with the songs from position start on, out
+		 * of total songs.
+		 */
+		public void onMusicRetrieverBatch(int start, ArrayList<Song> batch,
+				int total);
 	}
 }
@@ -0,0 +1,295 @@
+package com.nozomi.ttplayer;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the songs whose name contains what the user typed, either as it is
+ * written or as pinyin initials, so "zjl" finds 周杰伦. The title, artist and
+ * album tags count as part of the name. Every name is indexed by the pairs of
+ * adjacent characters in it and in its initials. A query only checks the
+ * songs that have the rarest of its pairs, which keeps it well within a
+ * keystroke even for tens of thousands of songs.
+ *
+ * Building the index takes a while, so do it off the main thread. Queries and
+ * {@link #remove(Song)} are meant for the main thread.
+ */
+public class SearchIndex {
+
+	// the first hanzi of every pinyin initial, in collation order
+	private static final String BOUNDARIES = "阿八嚓哒妸发旮哈讥咔垃痳拏噢妑七呥扨它穵夕丫帀";
+	private static final String INITIALS = "abcdefghjklmnopqrstwxyz";
+	private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
+	// initial of every hanzi looked up so far, guarded by COLLATOR
+	private static final char[] initialCache = new char[0x9fa5 - 0x4e00 + 1];
+
+	private final Song[] songs;
+	// lower case names and their initials, same length and positions
+	private final String[] names;
+	private final String[] initials;
+	private final boolean[] deleted;
+	private final SongIndex docs = new SongIndex();
+
+	// postings of every pair of characters, as ranges of one array
+	private final IntMap pairs = new IntMap();
+	private int[] starts;
+	private int[] ends;
+	private int[] postings;
+
+	/** Indexes the given songs. Search results come in the same order. */
+	public SearchIndex(List<Song> songList) {
+		int size = songList.size();
+		songs = songList.toArray(new Song[size]);
+		names = new String[size];
+		initials = new String[size];
+		deleted = new boolean[size];
+		docs.clear(size);
+
+		// first count the songs of every pair, then lay the postings out
+		int[] keys = new int[64];
+		for (int doc = 0; doc < size; doc++) {
+			names[doc] = textOf(songs[doc]).toLowerCase(Locale.US);
+			initials[doc] = initialsOf(names[doc]);
+			docs.put(songs[doc].getId(), doc);
+			keys = pairsOf(doc, keys);
+			for (int i = 1; i <= keys[0]; i++) {
+				pairs.increment(keys[i]);
+			}
+		}
+		starts = new int[pairs.capacity()];
+		ends = new int[pairs.capacity()];
+		int total = 0;
+		for (int slot = 0; slot < starts.length; slot++) {
+			starts[slot] = total;
+			ends[slot] = total;
+			total += pairs.valueAt(slot);
+		}
+		postings = new int[total];
+		for (int doc = 0; doc < size; doc++) {
+			keys = pairsOf(doc, keys);
+			for (int i = 1; i <= keys[0]; i++) {
+				postings[ends[pairs.slotOf(keys[i])]++] = doc;
+			}
+		}
+	}
+
+	/**
+	 * Collects the distinct pairs of a song into keys[1..keys[0]], growing
+	 * the array if needed.
+	 */
+	private int[] pairsOf(int doc, int[] keys) {
+		String name = names[doc];
+		String initial = initials[doc];
+		int length = name.length();
+		if (keys.length < length * 2 + 1) {
+			keys = new int[length * 2 + 1];
+		}
+		int count = 0;
+		for (int i = 0; i + 1 < length; i++) {
+			keys[++count] = pair(name.charAt(i), name.charAt(i + 1));
+			keys[++count] = pair(initial.charAt(i), initial.charAt(i + 1));
+		}
+		Arrays.sort(keys, 1, count + 1);
+		int distinct = 0;
+		for (int i = 1; i <= count; i++) {
+			if (distinct == 0 || keys[i] != keys[distinct]) {
+				keys[++distinct] = keys[i];
+			}
+		}
+		keys[0] = distinct;
+		return keys;
+	}
+
+	/**
+	 * Joins the name and tags of a song with line breaks, which a query never
+	 * has, so that no match spans two of them.
+	 */
+	private static String textOf(Song song) {
+		StringBuilder text = new StringBuilder(song.getName());
+		String[] tags = { song.getTitle(), song.getArtist(), song.getAlbum() };
+		for (String tag : tags) {
+			if (tag != null && tag.length() > 0) {
+				text.append('\n').append(tag);
+			}
+		}
+		return text.toString();
+	}
+
+	private static int pair(char first, char second) {
+		return (first << 16) | second;
+	}
+
+	/**
+	 * Returns the songs whose name or initials contain the query, ignoring
+	 * case. An empty query matches nothing.
+	 */
+	public ArrayList<Song> search(String query) {
+		ArrayList<Song> result = new ArrayList<Song>();
+		String text = query.trim().toLowerCase(Locale.US);
+		if (text.length() == 0) {
+			return result;
+		}
+		if (text.length() == 1) {
+			for (int doc = 0; doc < songs.length; doc++) {
+				if (matches(doc, text)) {
+					result.add(songs[doc]);
+				}
+			}
+			return result;
+		}
+
+		// the rarest pair of the query narrows the songs down the most
+		int best = -1;
+		for (int i = 0; i + 1 < text.length(); i++) {
+			int slot = pairs.slotOf(pair(text.charAt(i), text.charAt(i + 1)));
+			if (slot == -1) {
+				return result;
+			}
+			if (best == -1
+					|| ends[slot] - starts[slot] < ends[best] - starts[best]) {
+				best = slot;
+			}
+		}
+		for (int i = starts[best]; i < ends[best]; i++) {
+			int doc = postings[i];
+			if (matches(doc, text)) {
+				result.add(songs[doc]);
+			}
+		}
+		return result;
+	}
+
+	private boolean matches(int doc, String text) {
+		return !deleted[doc]
+				&& (names[doc].contains(text) || initials[doc].contains(text));
+	}
+
+	/** Drops the song from the results. */
+	public void remove(Song song) {
+		int doc = docs.get(song.getId());
+		if (doc != -1) {
+			deleted[doc] = true;
+		}
+	}
+
+	/**
+	 * Returns the pinyin initials of a name, one character for every
+	 * character of the name. Characters that aren't hanzi stay as they are.
+	 */
+	public static String initialsOf(String name) {
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = initialOf(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Hanzi are sorted by pinyin under the Chinese collator, so the initial of
+	 * one is that of the last boundary that doesn't sort after it.
+	 */
+	private static char initialOf(char c) {
+		if (c < 0x4e00 || c > 0x9fa5) {
+			return c;
+		}
+		synchronized (COLLATOR) {
+			char initial = initialCache[c - 0x4e00];
+			if (initial == 0) {
+				initial = c;
+				String text = String.valueOf(c);
+				int low = 0;
+				int high = BOUNDARIES.length() - 1;
+				while (low <= high) {
+					int middle = (low + high) >>> 1;
+					if (COLLATOR.compare(text,
+							String.valueOf(BOUNDARIES.charAt(middle))) >= 0) {
+						initial = INITIALS.charAt(middle);
+						low = middle + 1;
+					} else {
+						high = middle - 1;
+					}
+				}
+				initialCache[c - 0x4e00] = initial;
+			}
+			return initial;
+		}
+	}
+
+	/** Open addressing map from int keys to counts, for the pairs. */
+	private static class IntMap {
+		private int[] keys = new int[1024];
+		private int[] values = new int[1024];
+		private boolean[] used = new boolean[1024];
+		private int size = 0;
+
+		int capacity() {
+			return keys.length;
+		}
+
+		int valueAt(int slot) {
+			return used[slot] ? values[slot] : 0;
+		}
+
+		/** Returns the slot of the key, or -1 if it isn't there. */
+		int slotOf(int key) {
+			int mask = keys.length - 1;
+			for (int slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+				if (!used[slot]) {
+					return -1;
+				}
+				if (keys[slot] == key) {
+					return slot;
+				}
+			}
+		}
+
+		void increment(int key) {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+			}
+			int mask = keys.length - 1;
+			for (int slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+				if (!used[slot]) {
+					used[slot] = true;
+					keys[slot] = key;
+					values[slot] = 1;
+					size++;
+					return;
+				}
+				if (keys[slot] == key) {
+					values[slot]++;
+					return;
+				}
+			}
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+			keys = new int[oldKeys.length * 2];
+			values = new int[keys.length];
+			used = new boolean[keys.length];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					int slot = mix(oldKeys[i]) & mask;
+					while (used[slot]) {
+						slot = (slot + 1) & mask;
+					}
+					used[slot] = true;
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
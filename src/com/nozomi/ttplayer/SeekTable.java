@@ -0,0 +1,91 @@
+package com.nozomi.ttplayer;
+
+import java.io.Serializable;
+
+/**
+ * Where in the audio data each percent of a VBR mp3 starts, like the table
+ * of contents of a Xing header. Only kept for VBR files without such a
+ * header: for those, MediaPlayer assumes the bitrate of the first frame holds
+ * for the whole file, so the times it seeks to and reports are off. This
+ * table converts between real times and the times MediaPlayer believes in.
+ */
+public class SeekTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of bytes {@link #write(byte[], int)} needs. */
+	public static final int SIZE = 108;
+
+	// start of every percent of the duration, in 1/256 of the audio bytes
+	private final byte[] toc;
+	private final int audioBytes;
+	// bits per second of the first frame
+	private final int bitrate;
+
+	public SeekTable(byte[] toc, int audioBytes, int bitrate) {
+		this.toc = toc;
+		this.audioBytes = audioBytes;
+		this.bitrate = bitrate;
+	}
+
+	private int entry(int percent) {
+		return percent >= 100 ? 256 : toc[percent] & 0xff;
+	}
+
+	/** Returns the time to seek MediaPlayer to, to get to the given time. */
+	public int toPlayerTime(int time, int duration) {
+		if (duration <= 0 || bitrate <= 0) {
+			return time;
+		}
+		double percent = Math.max(0, Math.min(100, time * 100.0 / duration));
+		int floor = Math.min(99, (int) percent);
+		double fraction = entry(floor) + (entry(floor + 1) - entry(floor))
+				* (percent - floor);
+		double bytes = fraction / 256 * audioBytes;
+		return (int) (bytes * 8000 / bitrate);
+	}
+
+	/** Returns the real time of a position MediaPlayer reports. */
+	public int fromPlayerTime(int playerTime, int duration) {
+		if (duration <= 0 || audioBytes <= 0) {
+			return playerTime;
+		}
+		double bytes = (double) playerTime * bitrate / 8000;
+		double fraction = Math.min(256, bytes * 256 / audioBytes);
+		int percent = 0;
+		while (percent < 99 && entry(percent + 1) <= fraction) {
+			percent++;
+		}
+		int low = entry(percent);
+		int high = entry(percent + 1);
+		double within = high > low ? (fraction - low) / (high - low) : 0;
+		return (int) ((percent + Math.min(1, within)) * duration / 100);
+	}
+
+	/** Writes the table as {@link #SIZE} bytes at the given offset. */
+	public void write(byte[] bytes, int offset) {
+		putInt(bytes, offset, audioBytes);
+		putInt(bytes, offset + 4, bitrate);
+		System.arraycopy(toc, 0, bytes, offset + 8, 100);
+	}
+
+	/** Reads a table written by {@link #write(byte[], int)}. */
+	public static SeekTable read(byte[] bytes, int offset) {
+		byte[] toc = new byte[100];
+		System.arraycopy(bytes, offset + 8, toc, 0, 100);
+		return new SeekTable(toc, getInt(bytes, offset), getInt(bytes,
+				offset + 4));
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+				| (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+	}
+}
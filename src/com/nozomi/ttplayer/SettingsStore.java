@@ -0,0 +1,231 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * The settings behind {@link PreferencesUtils}, kept in memory and written to
+ * settings.dat in the app's files by a thread of its own, so changing them
+ * never waits for the disk. Changes are written {@link #WRITE_DELAY} after
+ * the first one, all of them at once; {@link #flush()} writes them right
+ * away, for when the process may go.
+ *
+ * Settings of older versions are taken over from the shared preferences the
+ * first time.
+ */
+public class SettingsStore {
+	final String TAG = "SettingsStore";
+
+	private static final int MAGIC = 0x74745354; // "ttST"
+	private static final int VERSION = 1;
+	private static final long WRITE_DELAY = 1000;
+	// how long stopping waits for the last write
+	private static final long FLUSH_TIMEOUT = 500;
+
+	private static SettingsStore instance = null;
+
+	private final File file;
+	private final ScheduledExecutorService writer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	// guarded by this
+	private int mode;
+	private int volume;
+	private String songPath;
+	private int position;
+	private boolean dirty = false;
+	private boolean writeScheduled = false;
+
+	private final Runnable write = new Runnable() {
+
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	public static synchronized SettingsStore get(Context context) {
+		if (instance == null) {
+			instance = new SettingsStore(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private SettingsStore(Context context) {
+		file = new File(context.getFilesDir(), "settings.dat");
+		if (!load()) {
+			SharedPreferences sp = context.getSharedPreferences("ttplayer",
+					Context.MODE_PRIVATE);
+			mode = sp.getInt("mode", PreferencesUtils.Mode.Random.ordinal());
+			volume = sp.getInt("volume", 100);
+			songPath = sp.getString("song", "");
+			position = 0;
+		}
+	}
+
+	public synchronized int getMode() {
+		return mode;
+	}
+
+	public synchronized void setMode(int mode) {
+		if (this.mode != mode) {
+			this.mode = mode;
+			changed();
+		}
+	}
+
+	public synchronized int getVolume() {
+		return volume;
+	}
+
+	/** Sets the volume, writing it out only if save is set. */
+	public synchronized void setVolume(int volume, boolean save) {
+		this.volume = volume;
+		if (save) {
+			changed();
+		}
+	}
+
+	/** Returns the path of the last song, "" if there is none. */
+	public synchronized String getSongPath() {
+		return songPath;
+	}
+
+	/** Returns where playback of the last song was. */
+	public synchronized int getPosition() {
+		return position;
+	}
+
+	public synchronized void setSong(String path, int position) {
+		if (!songPath.equals(path) || this.position != position) {
+			songPath = path;
+			this.position = position;
+			changed();
+		}
+	}
+
+	private void changed() {
+		dirty = true;
+		if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(write, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes any changes now and waits a little for that, so they are on disk
+	 * before the process can be killed.
+	 */
+	public void flush() {
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+		}
+		try {
+			writer.submit(write).get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		} catch (TimeoutException e) {
+			Log.e(TAG, "flush timed out");
+		}
+	}
+
+	private boolean load() {
+		if (!file.exists()) {
+			return false;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return false;
+			}
+			mode = in.readInt();
+			volume = in.readInt();
+			songPath = in.readUTF();
+			position = in.readInt();
+			if (mode < 0 || mode >= PreferencesUtils.Mode.values().length) {
+				mode = PreferencesUtils.Mode.Random.ordinal();
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/** Writes the settings next to the file first and renames it over it. */
+	private void write() {
+		int mode;
+		int volume;
+		String songPath;
+		int position;
+		synchronized (this) {
+			writeScheduled = false;
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			mode = this.mode;
+			volume = this.volume;
+			songPath = this.songPath;
+			position = this.position;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mode);
+			out.writeInt(volume);
+			out.writeUTF(songPath);
+			out.writeInt(position);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.e(TAG, "can't rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized (this) {
+				// try again with the next change
+				dirty = true;
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
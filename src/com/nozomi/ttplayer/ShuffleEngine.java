@@ -0,0 +1,465 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Shuffle order over the positions of the song list, without repeats. The
+ * order is a permutation built one step at a time, Fisher-Yates style: the
+ * first played slots hold the songs played in this round, in order, and every
+ * step to a new song swaps a random one of the remaining slots to the front.
+ * Going back and forth within the played slots replays the same songs.
+ *
+ * The played slots are saved to a small file, so a restarted service carries
+ * on with the same round. Each new song appends one int to it; the file is
+ * only rewritten when the list changes or a round ends. The list the file
+ * belongs to is identified by a tag, see {@link MusicRetriever}. Writes are
+ * taken down on the calling thread and done in order by a thread of their
+ * own, like those of {@link PlaylistJournal}, so moving on never waits for
+ * the disk.
+ */
+public class ShuffleEngine {
+	final String TAG = "ShuffleEngine";
+
+	private static final int MAGIC = 0x74745348; // "ttSH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int CURSOR_OFFSET = 20;
+	// how long closing waits for the last writes
+	private static final long CLOSE_TIMEOUT = 500;
+
+	private final File file;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private final Random random = new Random();
+
+	// position of the song in each slot, and the slot of each position
+	private int[] order = new int[0];
+	private int[] slots = new int[0];
+	private int size = 0;
+	// slots before this one have been played in this round
+	private int played = 0;
+	// slot of the song playing now, -1 before the first one
+	private int cursor = -1;
+	private long tag = 0;
+	// the position peekNext() picked for next() to return, -1 if none
+	private int peeked = -1;
+
+	public ShuffleEngine(File file) {
+		this.file = file;
+	}
+
+	/** Starts a new shuffle over a list of the given size. */
+	public void reset(int size, long tag) {
+		this.size = size;
+		this.tag = tag;
+		order = new int[size];
+		slots = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+			slots[i] = i;
+		}
+		played = 0;
+		cursor = -1;
+		peeked = -1;
+		save();
+	}
+
+	/**
+	 * Picks up the saved shuffle if it belongs to a list of the given size and
+	 * tag, and starts a new one otherwise.
+	 */
+	public void restore(int size, long tag) {
+		// the file may still be being written
+		await();
+		DataInputStream in = null;
+		try {
+			if (!file.exists()) {
+				reset(size, tag);
+				return;
+			}
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 16 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| in.readInt() != size || in.readLong() != tag) {
+				reset(size, tag);
+				return;
+			}
+			int savedCursor = in.readInt();
+			int[] history = new int[size];
+			boolean[] seen = new boolean[size];
+			int count = 0;
+			try {
+				while (count < size) {
+					int position = in.readInt();
+					if (position < 0 || position >= size || seen[position]) {
+						break;
+					}
+					seen[position] = true;
+					history[count++] = position;
+				}
+			} catch (EOFException e) {
+				// end of the history, or an int cut short by a crash
+			}
+			rebuild(size, tag, history, count, Math.min(savedCursor, count - 1));
+		} catch (IOException e) {
+			e.printStackTrace();
+			reset(size, tag);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts the played positions in the first slots, in order, and all other
+	 * positions after them.
+	 */
+	private void rebuild(int size, long tag, int[] history, int count,
+			int cursor) {
+		this.size = size;
+		this.tag = tag;
+		order = new int[size];
+		slots = new int[size];
+		boolean[] seen = new boolean[size];
+		for (int i = 0; i < count; i++) {
+			order[i] = history[i];
+			seen[history[i]] = true;
+		}
+		int slot = count;
+		for (int position = 0; position < size; position++) {
+			if (!seen[position]) {
+				order[slot++] = position;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			slots[order[i]] = i;
+		}
+		played = count;
+		this.cursor = cursor;
+		peeked = -1;
+	}
+
+	/**
+	 * Returns the position of the next song, or -1 if the list is empty. Once
+	 * every song has been played, a new round starts, never with the song
+	 * that ended the last one.
+	 */
+	public int next() {
+		if (size == 0) {
+			return -1;
+		}
+		if (cursor + 1 < played) {
+			cursor++;
+			saveCursor();
+			return order[cursor];
+		}
+		int last = -1;
+		if (played == size) {
+			last = order[cursor];
+			played = 0;
+			cursor = -1;
+			save();
+		}
+		int slot = peeked != -1 ? slots[peeked] : pick(played, last);
+		peeked = -1;
+		swap(played, slot);
+		cursor = played++;
+		append(order[cursor]);
+		return order[cursor];
+	}
+
+	/**
+	 * Returns the position {@link #next()} will return, without moving on, or
+	 * -1 if the list is empty. Anything changing the shuffle but next() may
+	 * change it.
+	 */
+	public int peekNext() {
+		if (size == 0) {
+			return -1;
+		}
+		if (cursor + 1 < played) {
+			return order[cursor + 1];
+		}
+		if (peeked == -1) {
+			boolean newRound = played == size;
+			peeked = order[pick(newRound ? 0 : played, newRound ? order[cursor]
+					: -1)];
+		}
+		return peeked;
+	}
+
+	/**
+	 * Picks the slot of the next song of a round whose unplayed songs start
+	 * at slot first, never the song last if there is another.
+	 */
+	private int pick(int first, int last) {
+		int slot = first + random.nextInt(size - first);
+		if (order[slot] == last && size - first > 1) {
+			// draw again from the other slots, wherever last is
+			int lastSlot = slot;
+			slot = first + random.nextInt(size - first - 1);
+			if (slot >= lastSlot) {
+				slot++;
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns the position of the song played before the current one, or -1
+	 * if it's the first of the round.
+	 */
+	public int previous() {
+		if (cursor <= 0) {
+			return -1;
+		}
+		cursor--;
+		saveCursor();
+		return order[cursor];
+	}
+
+	/**
+	 * Makes the song at the given position the current one, as the latest
+	 * song played. Used when the user picks a song.
+	 */
+	public void setCurrent(int position) {
+		if (position < 0 || position >= size) {
+			return;
+		}
+		peeked = -1;
+		int slot = slots[position];
+		if (slot < played) {
+			// move it from its place in the history to the end
+			System.arraycopy(order, slot + 1, order, slot, played - slot - 1);
+			order[played - 1] = position;
+			for (int i = slot; i < played; i++) {
+				slots[order[i]] = i;
+			}
+			cursor = played - 1;
+			save();
+		} else {
+			swap(played, slot);
+			cursor = played++;
+			append(position);
+		}
+	}
+
+	/**
+	 * Drops the song at the given position, after it was removed from the
+	 * list. Positions after it move down by one; nothing is reshuffled.
+	 */
+	public void remove(int position, long tag) {
+		if (position < 0 || position >= size) {
+			return;
+		}
+		peeked = -1;
+		int slot = slots[position];
+		if (slot < played) {
+			System.arraycopy(order, slot + 1, order, slot, size - slot - 1);
+			played--;
+			if (cursor >= slot) {
+				cursor--;
+			}
+		} else {
+			order[slot] = order[size - 1];
+		}
+		size--;
+		for (int i = 0; i < size; i++) {
+			if (order[i] > position) {
+				order[i]--;
+			}
+			slots[order[i]] = i;
+		}
+		this.tag = tag;
+		save();
+	}
+
+	/** Returns the positions played in this round, in order. */
+	public int[] getHistory() {
+		int[] history = new int[played];
+		System.arraycopy(order, 0, history, 0, played);
+		return history;
+	}
+
+	/**
+	 * Carries the shuffle over to a changed list. newPositions holds the new
+	 * position of every song in {@link #getHistory()}, or -1 for songs that
+	 * are gone. Songs that are new to the list count as not played yet.
+	 */
+	public void remap(int[] newPositions, int newSize, long tag) {
+		int[] history = new int[newPositions.length];
+		boolean[] seen = new boolean[newSize];
+		int count = 0;
+		int newCursor = -1;
+		for (int i = 0; i < newPositions.length; i++) {
+			int position = newPositions[i];
+			if (position >= 0 && position < newSize && !seen[position]) {
+				seen[position] = true;
+				history[count++] = position;
+			}
+			if (i == cursor) {
+				newCursor = count - 1;
+			}
+		}
+		rebuild(newSize, tag, history, count, newCursor);
+		save();
+	}
+
+	private void swap(int a, int b) {
+		int position = order[a];
+		order[a] = order[b];
+		order[b] = position;
+		slots[order[a]] = a;
+		slots[order[b]] = b;
+	}
+
+	/**
+	 * Writes what is left to write and stops the thread, waiting a little for
+	 * that.
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void execute(Runnable write) {
+		try {
+			writer.execute(write);
+		} catch (RejectedExecutionException e) {
+			// closed, as a load still running when the service went may find
+			Log.e(TAG, "closed, not saving shuffle");
+		}
+	}
+
+	/** Waits until everything saved so far has been written. */
+	private void await() {
+		try {
+			writer.submit(new Runnable() {
+
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (RejectedExecutionException e) {
+			// closed, nothing more gets written
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Rewrites the file with the header and the played positions. */
+	private void save() {
+		final int size = this.size;
+		final long tag = this.tag;
+		final int cursor = this.cursor;
+		final int[] history = getHistory();
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				write(size, tag, cursor, history);
+			}
+		});
+	}
+
+	private void write(int size, long tag, int cursor, int[] history) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), 16 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			out.writeLong(tag);
+			out.writeInt(cursor);
+			for (int position : history) {
+				out.writeInt(position);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "can't save shuffle: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/** Appends a newly played position and moves the saved cursor to it. */
+	private void append(final int position) {
+		final long offset = HEADER_SIZE + (long) (played - 1) * 4;
+		final int cursor = this.cursor;
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				writeAt(offset, position, cursor);
+			}
+		});
+	}
+
+	private void saveCursor() {
+		final int cursor = this.cursor;
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				writeAt(-1, 0, cursor);
+			}
+		});
+	}
+
+	/**
+	 * Writes the position at the given offset, unless it is -1, and the
+	 * cursor into the header.
+	 */
+	private void writeAt(long offset, int position, int cursor) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			if (offset != -1) {
+				raf.seek(offset);
+				raf.writeInt(position);
+			}
+			raf.seek(CURSOR_OFFSET);
+			raf.writeInt(cursor);
+		} catch (IOException e) {
+			Log.e(TAG, "can't save shuffle: " + e.getMessage());
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -3,14 +3,39 @@ package com.nozomi.ttplayer;
 import java.io.Serializable;
 import java.text.Collator;
 
+import android.os.Build;
+
 public class Song implements Serializable, Comparable<Song> {
 
 	private static final long serialVersionUID = 1L;
 	private String path;
 	private String name;
+	// from the tags of the file, null or 0 if it has none
+	private String title;
+	private String artist;
+	private String album;
+	private int track;
+	// in ms, 0 if not known yet
+	private int duration;
+	// too big to ship to the UI with every song; the service reads it from
+	// the songs of its own list
+	private transient SeekTable seekTable;
+	// where the audio is between the tags, in bytes; end is 0 if not known
+	private transient long audioStart = 0;
+	private transient long audioEnd = 0;
 	private static Collator collator = Collator
 			.getInstance(java.util.Locale.CHINA);
 
+	/**
+	 * Sort keys depend on the collation data of the system, so keys saved by
+	 * another system version can't be trusted.
+	 */
+	public static final int SORT_KEY_VERSION = Build.VERSION.SDK_INT;
+
+	// collation key of the name; songs sort by comparing these bytes
+	private transient byte[] sortKey = null;
+	private transient long id = 0;
+
 	public Song() {
 		super();
 	}
@@ -35,6 +60,7 @@ public class Song implements Serializable, Comparable<Song> {
 
 	public void setPath(String path) {
 		this.path = path;
+		this.id = 0;
 	}
 
 	public String getName() {
@@ -43,17 +69,161 @@ public class Song implements Serializable, Comparable<Song> {
 
 	public void setName(String name) {
 		this.name = name;
+		this.sortKey = null;
+	}
+
+	/**
+	 * Returns "artist - title" from the tags, or the title alone, or the name
+	 * if the file has no title tag. The list still sorts by name.
+	 */
+	public String getDisplayName() {
+		if (title == null || title.length() == 0) {
+			return name;
+		}
+		if (artist == null || artist.length() == 0) {
+			return title;
+		}
+		return artist + " - " + title;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public void setArtist(String artist) {
+		this.artist = artist;
+	}
+
+	public String getAlbum() {
+		return album;
+	}
+
+	public void setAlbum(String album) {
+		this.album = album;
+	}
+
+	public int getTrack() {
+		return track;
 	}
 
+	public void setTrack(int track) {
+		this.track = track;
+	}
+
+	public int getDuration() {
+		return duration;
+	}
+
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+	/** Returns the seek table of a VBR file that needs one, or null. */
+	public SeekTable getSeekTable() {
+		return seekTable;
+	}
+
+	public void setSeekTable(SeekTable seekTable) {
+		this.seekTable = seekTable;
+	}
+
+	/** Returns where the audio starts, after any tags; see getAudioEnd(). */
+	public long getAudioStart() {
+		return audioStart;
+	}
+
+	/**
+	 * Returns where the audio ends, before any tags, or 0 if that wasn't
+	 * read yet. Set by {@link DuplicateFinder}.
+	 */
+	public long getAudioEnd() {
+		return audioEnd;
+	}
+
+	public void setAudioRegion(long start, long end) {
+		this.audioStart = start;
+		this.audioEnd = end;
+	}
+
+	/**
+	 * Returns a 64-bit id derived from the path, so it stays the same across
+	 * scans and restarts.
+	 */
+	public long getId() {
+		if (id == 0) {
+			id = idOf(path);
+		}
+		return id;
+	}
+
+	/** FNV-1a over the characters of the path. */
+	public static long idOf(String path) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public byte[] getSortKey() {
+		if (sortKey == null) {
+			synchronized (collator) {
+				sortKey = sortKeyOf(collator, name);
+			}
+		}
+		return sortKey;
+	}
+
+	public void setSortKey(byte[] sortKey) {
+		this.sortKey = sortKey;
+	}
+
+	/**
+	 * Computes a sort key with the given collator. Collators aren't thread
+	 * safe, so threads other than the main one should bring their own.
+	 */
+	public static byte[] sortKeyOf(Collator collator, String name) {
+		return collator.getCollationKey(name).toByteArray();
+	}
+
+	/**
+	 * Orders by name: English (a-z) first, then Chinese by pinyin. Songs with
+	 * the same name are ordered by path.
+	 */
 	@Override
 	public int compareTo(Song another) {
-		if (name.equals(another.getName())) {
+		byte[] key = getSortKey();
+		byte[] anotherKey = another.getSortKey();
+		int length = Math.min(key.length, anotherKey.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (key[i] & 0xff) - (anotherKey[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		if (key.length != anotherKey.length) {
+			return key.length - anotherKey.length;
+		}
+		synchronized (collator) {
 			return collator.compare(path, another.path);
-		} else {
-			return collator.compare(name, another.name);
 		}
 	}
 
+	@Override
+	public int hashCode() {
+		long id = getId();
+		return (int) (id ^ (id >>> 32));
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -66,11 +66,11 @@ public class SongAdapter extends BaseAdapter {
 			convertView.setBackgroundColor(songEven);
 		}
 		if (id < 10) {
-			holder.nameView.setText("    " + id + "." + song.getName());
+			holder.nameView.setText("    " + id + "." + song.getDisplayName());
 		} else if (id < 100) {
-			holder.nameView.setText("  " + id + "." +  song.getName());
+			holder.nameView.setText("  " + id + "." +  song.getDisplayName());
 		} else {
-			holder.nameView.setText(id + "." +  song.getName());
+			holder.nameView.setText(id + "." +  song.getDisplayName());
 		}
 		
 		holder.deleteView.setOnClickListener(new OnClickListener() {
@@ -91,7 +91,7 @@ public class SongAdapter extends BaseAdapter {
 	private void dialog(final Song song) {
 		AlertDialog.Builder builder = new Builder(context);
 		builder.setIcon(R.drawable.ic_launcher); // 设置图标		
-		builder.setTitle("delete \"" + song.getName() + "\""); // 设置标题
+		builder.setTitle("delete \"" + song.getDisplayName() + "\""); // 设置标题
 		builder.setPositiveButton("delete file",
 				new android.content.DialogInterface.OnClickListener() {
 
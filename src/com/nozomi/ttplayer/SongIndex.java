@@ -0,0 +1,123 @@
+package com.nozomi.ttplayer;
+
+/**
+ * Maps song ids to positions in the song list. An open addressing hash table
+ * on primitive arrays, so a library of 100k songs doesn't cost 100k boxed
+ * entries.
+ */
+public class SongIndex {
+
+	private static final int EMPTY = -1;
+
+	private long[] ids = new long[16];
+	private int[] positions = newPositions(16);
+	private int size = 0;
+
+	private static int[] newPositions(int length) {
+		int[] positions = new int[length];
+		for (int i = 0; i < length; i++) {
+			positions[i] = EMPTY;
+		}
+		return positions;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear(int expectedSize) {
+		int length = 16;
+		while (length < expectedSize * 2) {
+			length <<= 1;
+		}
+		ids = new long[length];
+		positions = newPositions(length);
+		size = 0;
+	}
+
+	/** Returns the position of the song with the given id, or -1. */
+	public int get(long id) {
+		int mask = ids.length - 1;
+		for (int slot = mix(id) & mask;; slot = (slot + 1) & mask) {
+			if (positions[slot] == EMPTY) {
+				return -1;
+			}
+			if (ids[slot] == id) {
+				return positions[slot];
+			}
+		}
+	}
+
+	public void put(long id, int position) {
+		if ((size + 1) * 2 > ids.length) {
+			grow();
+		}
+		int mask = ids.length - 1;
+		for (int slot = mix(id) & mask;; slot = (slot + 1) & mask) {
+			if (positions[slot] == EMPTY) {
+				ids[slot] = id;
+				positions[slot] = position;
+				size++;
+				return;
+			}
+			if (ids[slot] == id) {
+				positions[slot] = position;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes the id, if it's there, and moves every position after its one
+	 * down by one, as removing the song from the list does. Returns the
+	 * position it had, or -1.
+	 */
+	public int removeAndShift(long id) {
+		int mask = ids.length - 1;
+		int hole = mix(id) & mask;
+		while (positions[hole] != EMPTY && ids[hole] != id) {
+			hole = (hole + 1) & mask;
+		}
+		int removed = positions[hole];
+		if (removed == EMPTY) {
+			return -1;
+		}
+		// pull back the entries after it that would no longer be found
+		int slot = (hole + 1) & mask;
+		while (positions[slot] != EMPTY) {
+			int home = mix(ids[slot]) & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				ids[hole] = ids[slot];
+				positions[hole] = positions[slot];
+				hole = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		positions[hole] = EMPTY;
+		size--;
+		for (int i = 0; i < positions.length; i++) {
+			if (positions[i] > removed) {
+				positions[i]--;
+			}
+		}
+		return removed;
+	}
+
+	private void grow() {
+		long[] oldIds = ids;
+		int[] oldPositions = positions;
+		ids = new long[oldIds.length * 2];
+		positions = newPositions(ids.length);
+		size = 0;
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldPositions[i] != EMPTY) {
+				put(oldIds[i], oldPositions[i]);
+			}
+		}
+	}
+
+	private static int mix(long id) {
+		long h = id * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
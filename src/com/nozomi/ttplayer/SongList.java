@@ -0,0 +1,239 @@
+package com.nozomi.ttplayer;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The list of songs behind {@link MusicRetriever}. It can be backed by a
+ * {@link PlaylistFile}, in which case a position only turns into a
+ * {@link Song} the first time it is read. Songs added later are held
+ * directly.
+ */
+public class SongList extends AbstractList<Song> implements RandomAccess,
+		Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient PlaylistFile source = null;
+	private transient MetadataCache metadata = null;
+	// decoded songs, null where the song is still only in the playlist file
+	private transient Song[] songs = new Song[16];
+	// position in the playlist file for every entry, -1 if there is none
+	private transient int[] records = new int[16];
+	private transient int size = 0;
+
+	/**
+	 * Returns a copy that shares the playlist file and the songs decoded so
+	 * far, without decoding anything.
+	 */
+	public SongList copy() {
+		SongList copy = new SongList();
+		copy.source = source;
+		copy.metadata = metadata;
+		copy.songs = new Song[Math.max(16, size)];
+		copy.records = new int[copy.songs.length];
+		System.arraycopy(songs, 0, copy.songs, 0, size);
+		System.arraycopy(records, 0, copy.records, 0, size);
+		copy.size = size;
+		return copy;
+	}
+
+	/**
+	 * Songs decoded from now on get what the cache knows about them. May be
+	 * null.
+	 */
+	public void setMetadata(MetadataCache metadata) {
+		this.metadata = metadata;
+	}
+
+	/** Replaces the content of this list with the songs of the playlist. */
+	public void setSource(PlaylistFile source) {
+		this.source = source;
+		size = source.size();
+		songs = new Song[Math.max(16, size)];
+		records = new int[songs.length];
+		for (int i = 0; i < size; i++) {
+			records[i] = i;
+		}
+		modCount++;
+	}
+
+	@Override
+	public Song get(int index) {
+		checkIndex(index, size);
+		Song song = songs[index];
+		if (song == null) {
+			song = source.read(records[index]);
+			if (metadata != null) {
+				metadata.apply(song);
+			}
+			songs[index] = song;
+		}
+		return song;
+	}
+
+	/**
+	 * Returns the {@link Song#getId() id} of the song at the given position,
+	 * without decoding it if it's still only in the playlist file.
+	 */
+	public long getId(int index) {
+		checkIndex(index, size);
+		Song song = songs[index];
+		if (song == null) {
+			return source.readId(records[index]);
+		}
+		return song.getId();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Song set(int index, Song song) {
+		Song old = get(index);
+		songs[index] = song;
+		records[index] = -1;
+		return old;
+	}
+
+	@Override
+	public void add(int index, Song song) {
+		checkIndex(index, size + 1);
+		ensureCapacity(size + 1);
+		System.arraycopy(songs, index, songs, index + 1, size - index);
+		System.arraycopy(records, index, records, index + 1, size - index);
+		songs[index] = song;
+		records[index] = -1;
+		size++;
+		modCount++;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Song> collection) {
+		ensureCapacity(size + collection.size());
+		for (Song song : collection) {
+			songs[size] = song;
+			records[size] = -1;
+			size++;
+		}
+		modCount++;
+		return !collection.isEmpty();
+	}
+
+	@Override
+	public Song remove(int index) {
+		Song old = get(index);
+		removeRange(index, index + 1);
+		return old;
+	}
+
+	/**
+	 * Removes the songs at the given positions, count of them in ascending
+	 * order, in one pass and without decoding any.
+	 */
+	public void removeAll(int[] positions, int count) {
+		if (count == 0) {
+			return;
+		}
+		int kept = positions[0];
+		int next = 0;
+		for (int i = positions[0]; i < size; i++) {
+			if (next < count && positions[next] == i) {
+				next++;
+				continue;
+			}
+			songs[kept] = songs[i];
+			records[kept] = records[i];
+			kept++;
+		}
+		for (int i = kept; i < size; i++) {
+			songs[i] = null;
+		}
+		size = kept;
+		modCount++;
+	}
+
+	/**
+	 * Inserts the songs in one pass, each at the position given for it in the
+	 * list as it is now. The positions must not go down.
+	 */
+	public void insertAll(int[] positions, List<Song> inserted) {
+		int count = inserted.size();
+		if (count == 0) {
+			return;
+		}
+		int length = Math.max(16, size + count);
+		Song[] newSongs = new Song[length];
+		int[] newRecords = new int[length];
+		int from = 0;
+		int to = 0;
+		for (int i = 0; i < count; i++) {
+			int position = positions[i];
+			checkIndex(position, size + 1);
+			System.arraycopy(songs, from, newSongs, to, position - from);
+			System.arraycopy(records, from, newRecords, to, position - from);
+			to += position - from;
+			from = position;
+			newSongs[to] = inserted.get(i);
+			newRecords[to] = -1;
+			to++;
+		}
+		System.arraycopy(songs, from, newSongs, to, size - from);
+		System.arraycopy(records, from, newRecords, to, size - from);
+		songs = newSongs;
+		records = newRecords;
+		size += count;
+		modCount++;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		System.arraycopy(songs, toIndex, songs, fromIndex, size - toIndex);
+		System.arraycopy(records, toIndex, records, fromIndex, size - toIndex);
+		for (int i = size - (toIndex - fromIndex); i < size; i++) {
+			songs[i] = null;
+		}
+		size -= toIndex - fromIndex;
+		modCount++;
+	}
+
+	@Override
+	public void clear() {
+		source = null;
+		songs = new Song[16];
+		records = new int[16];
+		size = 0;
+		modCount++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > songs.length) {
+			int length = Math.max(capacity, songs.length * 3 / 2);
+			Song[] newSongs = new Song[length];
+			int[] newRecords = new int[length];
+			System.arraycopy(songs, 0, newSongs, 0, size);
+			System.arraycopy(records, 0, newRecords, 0, size);
+			songs = newSongs;
+			records = newRecords;
+		}
+	}
+
+	private static void checkIndex(int index, int size) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size "
+					+ size);
+		}
+	}
+
+	/** Goes over the wire as a plain, fully decoded ArrayList. */
+	private Object writeReplace() throws ObjectStreamException {
+		return new ArrayList<Song>(this);
+	}
+}
@@ -0,0 +1,112 @@
+package com.nozomi.ttplayer;
+
+import java.util.ArrayList;
+
+/**
+ * Versions of the song list, so the UI only gets what changed since the
+ * version it has instead of the whole list. Every insert and delete bumps the
+ * version by one and is kept, up to {@link #MAX_OPS} of them; a reload starts
+ * over and leaves nothing to build on, so the UI gets the whole list then.
+ *
+ * Versions are only meaningful within one epoch, which is when the log was
+ * made, since the service and so the log may be recreated behind the UI's
+ * back.
+ */
+public class SongListLog {
+
+	// one delta has to fit in a broadcast, and songs go in it whole
+	private static final int MAX_OPS = 500;
+
+	/** The changes between two versions, oldest first. */
+	public static class Delta {
+		public final int fromVersion;
+		public final int toVersion;
+		/**
+		 * One entry per change: a position p >= 0 is an insert at p, of the
+		 * next song in {@link #inserted}; -p - 1 is a delete at p.
+		 */
+		public final int[] ops;
+		public final ArrayList<Song> inserted;
+
+		Delta(int fromVersion, int toVersion, int[] ops,
+				ArrayList<Song> inserted) {
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.ops = ops;
+			this.inserted = inserted;
+		}
+
+		public boolean isEmpty() {
+			return ops.length == 0;
+		}
+	}
+
+	private final long epoch = System.currentTimeMillis();
+	// guarded by this
+	private int version = 0;
+	// the version the first op applies to
+	private int firstVersion = 0;
+	private final ArrayList<Integer> ops = new ArrayList<Integer>();
+	// the song of every op, null for deletes
+	private final ArrayList<Song> songs = new ArrayList<Song>();
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	public synchronized void inserted(int position, Song song) {
+		add(position, song);
+	}
+
+	public synchronized void deleted(int position) {
+		add(-position - 1, null);
+	}
+
+	/** The list was replaced as a whole; earlier versions can't catch up. */
+	public synchronized void reset() {
+		version++;
+		firstVersion = version;
+		ops.clear();
+		songs.clear();
+	}
+
+	private void add(int op, Song song) {
+		if (ops.size() == MAX_OPS) {
+			// drop the older half, rather than one op at a time
+			int dropped = MAX_OPS / 2;
+			ops.subList(0, dropped).clear();
+			songs.subList(0, dropped).clear();
+			firstVersion += dropped;
+		}
+		ops.add(op);
+		songs.add(song);
+		version++;
+	}
+
+	/**
+	 * Returns the changes from the given version of the given epoch to now,
+	 * an empty delta if there are none, or null if that version is too old or
+	 * unknown and only the whole list will do.
+	 */
+	public synchronized Delta since(long epoch, int version) {
+		if (epoch != this.epoch || version < firstVersion
+				|| version > this.version) {
+			return null;
+		}
+		int from = version - firstVersion;
+		int[] delta = new int[ops.size() - from];
+		ArrayList<Song> inserted = new ArrayList<Song>();
+		for (int i = 0; i < delta.length; i++) {
+			delta[i] = ops.get(from + i);
+			Song song = songs.get(from + i);
+			if (song != null) {
+				inserted.add(song);
+			}
+		}
+		return new Delta(version, this.version, delta, inserted);
+	}
+}
@@ -0,0 +1,149 @@
+package com.nozomi.ttplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * How often each song was played to the end and how often it was skipped,
+ * keyed by {@link Song#getId() song id} so the counts survive rescans. The
+ * counters are kept in primitive arrays, one slot per song ever counted.
+ */
+public class SongStats {
+
+	private static final int MAGIC = 0x74745354; // "ttST"
+	private static final int VERSION = 1;
+
+	private final SongIndex slots = new SongIndex();
+	private long[] ids = new long[16];
+	private int[] plays = new int[16];
+	private int[] skips = new int[16];
+	private int count = 0;
+
+	public synchronized void recordPlay(long id) {
+		plays[slotOf(id)]++;
+	}
+
+	public synchronized void recordSkip(long id) {
+		skips[slotOf(id)]++;
+	}
+
+	/**
+	 * Returns the weight of the song for smart random: 1 for a song never
+	 * counted, growing with every play and shrinking with every skip.
+	 */
+	public synchronized float weight(long id) {
+		int slot = slots.get(id);
+		if (slot == -1) {
+			return 1;
+		}
+		return (1f + plays[slot]) / (1f + 2f * skips[slot]);
+	}
+
+	private int slotOf(long id) {
+		int slot = slots.get(id);
+		if (slot == -1) {
+			if (count == ids.length) {
+				int length = count * 2;
+				long[] newIds = new long[length];
+				int[] newPlays = new int[length];
+				int[] newSkips = new int[length];
+				System.arraycopy(ids, 0, newIds, 0, count);
+				System.arraycopy(plays, 0, newPlays, 0, count);
+				System.arraycopy(skips, 0, newSkips, 0, count);
+				ids = newIds;
+				plays = newPlays;
+				skips = newSkips;
+			}
+			// a slot may hold the counts of a song from before a load
+			slot = count++;
+			ids[slot] = id;
+			plays[slot] = 0;
+			skips[slot] = 0;
+			slots.put(id, slot);
+		}
+		return slot;
+	}
+
+	/** Replaces the counts with the ones saved in the file, if any. */
+	public synchronized void load(File file) {
+		slots.clear(0);
+		count = 0;
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 16 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			int savedCount = in.readInt();
+			for (int i = 0; i < savedCount; i++) {
+				int slot = slotOf(in.readLong());
+				plays[slot] = in.readInt();
+				skips[slot] = in.readInt();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public void save(File file) {
+		long[] savedIds;
+		int[] savedPlays;
+		int[] savedSkips;
+		int savedCount;
+		synchronized (this) {
+			savedCount = count;
+			savedIds = new long[savedCount];
+			savedPlays = new int[savedCount];
+			savedSkips = new int[savedCount];
+			System.arraycopy(ids, 0, savedIds, 0, savedCount);
+			System.arraycopy(plays, 0, savedPlays, 0, savedCount);
+			System.arraycopy(skips, 0, savedSkips, 0, savedCount);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 16 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(savedCount);
+			for (int i = 0; i < savedCount; i++) {
+				out.writeLong(savedIds[i]);
+				out.writeInt(savedPlays[i]);
+				out.writeInt(savedSkips[i]);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("can't rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.nozomi.ttplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Reads the tags and works out the duration of many songs, on a small, fixed
+ * pool of threads. The format of every file is sniffed from its first bytes
+ * and its headers parsed in one pass. Reads are mostly waiting for storage,
+ * so a few threads keep it busy; more would only make the reads fight over
+ * it.
+ */
+public class TagExtractor {
+	final String TAG = "TagExtractor";
+
+	private static final int MAX_THREADS = 4;
+	private static final int WINDOW_SIZE = 16 * 1024;
+
+	/**
+	 * Fills in the tags and durations of all given songs and returns when
+	 * done. Songs whose file hasn't changed since it was cached get them from
+	 * the cache, which may be null, without opening the file. Every song ends
+	 * up in the writer. Don't call it from the main thread, and don't touch
+	 * the songs until it returns.
+	 */
+	public void extract(final List<Song> songs, final MetadataCache cache,
+			final MetadataCache.Writer writer) {
+		if (songs.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		int threadCount = Math.min(MAX_THREADS, Math.max(1, Runtime
+				.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+		final AtomicInteger next = new AtomicInteger();
+		for (int i = 0; i < threadCount; i++) {
+			pool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					// one set of parsers, and so buffers, per thread
+					Parsers parsers = new Parsers();
+					int index;
+					while ((index = next.getAndIncrement()) < songs.size()) {
+						Song song = songs.get(index);
+						File file = new File(song.getPath());
+						long fileSize = file.length();
+						long mtime = file.lastModified();
+						if (cache == null
+								|| !cache.apply(song, fileSize, mtime)) {
+							parsers.read(song);
+						}
+						synchronized (writer) {
+							writer.add(song, fileSize, mtime);
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		Log.e(TAG, "scanned " + songs.size() + " songs in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private class Parsers {
+		private final ChannelWindow window = new ChannelWindow(WINDOW_SIZE);
+		private final Id3Reader id3Reader = new Id3Reader();
+		private final Mp3FrameScanner mp3Scanner = new Mp3FrameScanner();
+		private final FlacParser flacParser = new FlacParser(window);
+		private final OggParser oggParser = new OggParser(window);
+		private final Mp4Parser mp4Parser = new Mp4Parser(window);
+		private final WavParser wavParser = new WavParser(window);
+
+		void read(Song song) {
+			FileInputStream fis = null;
+			try {
+				fis = new FileInputStream(song.getPath());
+				FileChannel channel = fis.getChannel();
+				window.reset(channel);
+				switch (FormatSniffer.sniff(window)) {
+				case FLAC:
+					flacParser.parse(song);
+					break;
+				case OGG:
+					oggParser.parse(song);
+					break;
+				case MP4:
+					mp4Parser.parse(song);
+					break;
+				case WAV:
+					wavParser.parse(song);
+					break;
+				default:
+					// mp3, or junk before the first frame of one
+					id3Reader.read(channel, song);
+					mp3Scanner.scan(channel, id3Reader.getAudioStart(), song);
+					break;
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "can't read " + song.getPath() + ": "
+						+ e.getMessage());
+			} catch (RuntimeException e) {
+				// a corrupt file a parser didn't see coming; the song still
+				// goes to the writer, and the pool goes on
+				Log.e(TAG, "can't parse " + song.getPath() + ": " + e);
+			} finally {
+				if (fis != null) {
+					try {
+						fis.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.nozomi.ttplayer;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the tags we need from a Vorbis comment list, as found in FLAC and Ogg
+ * files: a vendor string, then KEY=value strings, all UTF-8 with little
+ * endian lengths. A list cut short is read as far as it goes.
+ */
+public class VorbisComments {
+
+	/** Reads the list in bytes[offset..end) into the song. */
+	public static void parse(byte[] bytes, int offset, int end, Song song) {
+		int position = offset;
+		if (position + 4 > end) {
+			return;
+		}
+		position += 4 + getIntLE(bytes, position);
+		if (position < offset || position + 4 > end) {
+			return;
+		}
+		int count = getIntLE(bytes, position);
+		position += 4;
+		for (int i = 0; i < count && position + 4 <= end; i++) {
+			int length = getIntLE(bytes, position);
+			position += 4;
+			// not position + length, which a corrupt length overflows
+			if (length < 0 || length > end - position) {
+				return;
+			}
+			comment(bytes, position, length, song);
+			position += length;
+		}
+	}
+
+	private static void comment(byte[] bytes, int offset, int length,
+			Song song) {
+		int equals = -1;
+		// keys are short; long comments are pictures and the like
+		for (int i = offset; i < offset + Math.min(length, 16); i++) {
+			if (bytes[i] == '=') {
+				equals = i;
+				break;
+			}
+		}
+		if (equals == -1) {
+			return;
+		}
+		String key = new String(bytes, offset, equals - offset);
+		String value;
+		try {
+			value = new String(bytes, equals + 1, offset + length - equals - 1,
+					"UTF-8").trim();
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		if (value.length() == 0) {
+			return;
+		}
+		if (key.equalsIgnoreCase("TITLE")) {
+			song.setTitle(value);
+		} else if (key.equalsIgnoreCase("ARTIST")) {
+			song.setArtist(value);
+		} else if (key.equalsIgnoreCase("ALBUM")) {
+			song.setAlbum(value);
+		} else if (key.equalsIgnoreCase("TRACKNUMBER")) {
+			song.setTrack(parseTrack(value));
+		}
+	}
+
+	/** Parses "3" or "3/12". */
+	static int parseTrack(String text) {
+		int track = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			track = track * 10 + (c - '0');
+		}
+		return track;
+	}
+
+	static int getIntLE(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+				| (bytes[offset + 2] & 0xff) << 16
+				| (bytes[offset + 3] & 0xff) << 24;
+	}
+}
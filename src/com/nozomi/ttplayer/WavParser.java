@@ -0,0 +1,90 @@
+package com.nozomi.ttplayer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the duration from the fmt and data chunks of a RIFF/WAV file and the
+ * tags from its LIST/INFO chunk, if it has one. The audio is skipped without
+ * being read.
+ */
+public class WavParser {
+
+	private static final int FMT = 0x666d7420; // "fmt "
+	private static final int DATA = 0x64617461; // "data"
+	private static final int LIST = 0x4c495354; // "LIST"
+	private static final int INAM = 0x494e414d;
+	private static final int IART = 0x49415254;
+	private static final int IPRD = 0x49505244;
+	private static final int ITRK = 0x4954524b;
+
+	private final ChannelWindow window;
+
+	public WavParser(ChannelWindow window) {
+		this.window = window;
+	}
+
+	/** Parses the file the window was reset to. */
+	public void parse(Song song) throws IOException {
+		long size = window.size();
+		long byteRate = 0;
+		long dataSize = 0;
+		long position = 12;
+		while (position + 8 <= size && window.fill(position, 8)) {
+			int id = window.getInt(position);
+			long length = window.getIntLE(position + 4) & 0xffffffffL;
+			position += 8;
+			if (id == FMT && window.fill(position, 16)) {
+				byteRate = window.getIntLE(position + 8) & 0xffffffffL;
+			} else if (id == DATA) {
+				// streamed files may not know the length of their data
+				dataSize = Math.min(length, size - position);
+			} else if (id == LIST && window.fill(position, 4)
+					&& window.matches(position, "INFO")) {
+				parseInfo(position + 4, Math.min(position + length, size),
+						song);
+			}
+			// chunks are word aligned
+			position += length + (length & 1);
+		}
+		if (byteRate > 0 && dataSize > 0) {
+			song.setDuration((int) (dataSize * 1000 / byteRate));
+		}
+	}
+
+	private void parseInfo(long position, long end, Song song)
+			throws IOException {
+		while (position + 8 <= end && window.fill(position, 8)) {
+			int id = window.getInt(position);
+			long length = window.getIntLE(position + 4) & 0xffffffffL;
+			position += 8;
+			if (length > 0 && length <= window.capacity()
+					&& position + length <= end
+					&& window.fill(position, (int) length)) {
+				String text = text(window.at(position), (int) length);
+				if (id == INAM) {
+					song.setTitle(text);
+				} else if (id == IART) {
+					song.setArtist(text);
+				} else if (id == IPRD) {
+					song.setAlbum(text);
+				} else if (id == ITRK && text != null) {
+					song.setTrack(VorbisComments.parseTrack(text));
+				}
+			}
+			position += length + (length & 1);
+		}
+	}
+
+	private String text(int offset, int length)
+			throws UnsupportedEncodingException {
+		byte[] bytes = window.array();
+		int end = offset;
+		while (end < offset + length && bytes[end] != 0) {
+			end++;
+		}
+		String text = new String(bytes, offset, end - offset,
+				Id3Reader.legacyCharset(bytes, offset, end)).trim();
+		return text.length() == 0 ? null : text;
+	}
+}